@@ -49,6 +49,7 @@ private:
     // Counters
     int subIdCounter;
     int receiptIdCounter;
+    int transactionIdCounter;
     // Logout flow
     int pendingLogoutReceiptId; // -1 when no logout is pending
     bool shouldTerminate;       // true only after RECEIPT of logout
@@ -11,6 +11,7 @@ StompProtocol::StompProtocol()
     : loggedIn(false),
       subIdCounter(0),
       receiptIdCounter(0),
+      transactionIdCounter(0),
       pendingLogoutReceiptId(-1),
       shouldTerminate(false) {}
 
@@ -270,7 +271,13 @@ string StompProtocol::handleReport(const string &filePath)
         return "";
     }
 
-    string frames = "";
+    // The events are sent in one transaction, so the server fans them out
+    // together on COMMIT instead of one SEND at a time.
+    string transaction = username + "-report-" + to_string(++transactionIdCounter);
+    string frames = "BEGIN\n"
+                    "transaction:" +
+                    transaction + "\n\n";
+    frames += '\0';
     bool isFirstEvent = true;
 
     for (const Event &event : data.events)
@@ -314,17 +321,20 @@ string StompProtocol::handleReport(const string &filePath)
         frames +=
             "SEND\n"
             "destination:" +
-            gameName + "\n\n" +
-            body + "\0";
+            gameName + "\n"
+                       "transaction:" +
+            transaction + "\n\n" +
+            body;
+        frames += '\0';
 
        
         gameEvents[gameName][username].push_back(event);
     }
 
-    if (!frames.empty() && frames.back() == '\0')
-    {
-        frames.pop_back();
-    }
+    // the connection handler terminates the last frame
+    frames += "COMMIT\n"
+              "transaction:" +
+              transaction + "\n\n";
 
     return frames;
 }
@@ -58,7 +58,8 @@ def init_database():
         conn.executescript("""
             CREATE TABLE IF NOT EXISTS users (
                 username TEXT PRIMARY KEY,
-                password TEXT NOT NULL
+                password TEXT NOT NULL,
+                registration_date TEXT
             );
 
             CREATE TABLE IF NOT EXISTS login_history (
@@ -72,10 +73,17 @@ def init_database():
                 id INTEGER PRIMARY KEY AUTOINCREMENT,
                 username TEXT NOT NULL,
                 filename TEXT NOT NULL,
-                upload_time TEXT
+                upload_time TEXT,
+                game_channel TEXT
             );
         """)
 
+        # Add the columns missing from a database created by an older version
+        for table, column in (("users", "registration_date"), ("file_tracking", "game_channel")):
+            columns = [row[1] for row in conn.execute(f"PRAGMA table_info({table})")]
+            if column not in columns:
+                conn.execute(f"ALTER TABLE {table} ADD COLUMN {column} TEXT")
+
     print(f"[{SERVER_NAME}] Database initialized successfully")
 
 
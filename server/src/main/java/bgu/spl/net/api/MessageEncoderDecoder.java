@@ -19,4 +19,16 @@ public interface MessageEncoderDecoder<T> {
      */
     byte[] encode(T message);
 
+    /**
+     * tells whether a decoded message controls the session (e.g. logging in
+     * or out) rather than carrying data, so servers may process it ahead of
+     * bulk work. must not depend on the decoding state.
+     *
+     * @param message a message returned by {@link #decodeNextByte(byte)}
+     * @return true for session control messages
+     */
+    default boolean isControl(T message) {
+        return false;
+    }
+
 }
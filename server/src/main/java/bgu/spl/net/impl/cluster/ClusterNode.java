@@ -0,0 +1,438 @@
+package bgu.spl.net.impl.cluster;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bgu.spl.net.impl.data.LoginArbiter;
+import bgu.spl.net.impl.stomp.StompBroker;
+import bgu.spl.net.impl.stomp.StompMessagingProtocolImpl;
+import bgu.spl.net.impl.stomp.StompSessions;
+import bgu.spl.net.srv.ChannelListener;
+import bgu.spl.net.srv.Log;
+
+/**
+ * Runs the STOMP server as one node of a statically configured cluster.
+ *
+ * Every pair of nodes is connected by a TCP link (the node with the higher id
+ * dials) carrying STOMP-style frames:
+ * HELLO (node) opens a link, INTEREST / UNINTEREST (destination) advertise
+ * that the sender gained / lost its local subscribers of a destination, and
+ * PUBLISH (destination, optional conflation-key + body) carries a SEND to a
+ * node that has interest in it. CLAIM (user, session, request), CLAIM-RESULT (request, granted, user, session) and
+ * RELEASE (user, session) keep logins exclusive: every username is owned by
+ * one node, chosen by hash, which keeps the authoritative record of the
+ * session logged in with it. While the owner of a username is unreachable,
+ * logins with it are refused as unavailable (the client may retry).
+ *
+ * Three nodes on one machine:
+ * <pre>
+ * java -Dstomp.cluster.nodes=1=127.0.0.1:9101,2=127.0.0.1:9102,3=127.0.0.1:9103 \
+ *      -Dstomp.cluster.nodeId=1 bgu.spl.net.impl.stomp.StompServer 7771 reactor
+ * </pre>
+ * and the same with nodeId 2 and 3 on client ports 7772 and 7773 (7778 is
+ * taken by the SQL server).
+ */
+public class ClusterNode implements ChannelListener, LoginArbiter {
+
+    private static final long CLAIM_TIMEOUT_MILLIS = 2000;
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    private static final Log.Site LINK_EVENT = Log.site("cluster", 0);
+    private static final Log.Site ACCEPT_FAILED = Log.site("cluster: accepting a peer failed");
+    private static final Log.Site LOGIN_CONFLICT = Log.site("cluster: login conflict", 0);
+    private static final Log.Site UNKNOWN_FRAME = Log.site("cluster: unknown frame");
+
+    private final int nodeId;
+    private final TreeMap<Integer, InetSocketAddress> nodes;
+    private final int[] nodeIds;
+    private final StompBroker broker;
+
+    // <nodeId, link> for every peer that is currently reachable
+    private final ConcurrentHashMap<Integer, PeerLink> peers = new ConcurrentHashMap<>();
+    // destinations this node has local subscribers for
+    private final Set<String> localInterest = ConcurrentHashMap.newKeySet();
+    // <username, holder> for the usernames owned by this node
+    private final ConcurrentHashMap<String, Long> claims = new ConcurrentHashMap<>();
+    // <username, connectionId> for the sessions of this node holding a login
+    private final ConcurrentHashMap<String, Integer> localSessions = new ConcurrentHashMap<>();
+    // <requestId, claim> for CLAIMs waiting for their owner's answer
+    private final ConcurrentHashMap<Integer, PendingClaim> pendingClaims = new ConcurrentHashMap<>();
+    private final AtomicInteger requestIdCounter = new AtomicInteger(0);
+
+    private volatile boolean running = true;
+    private ServerSocket serverSock;
+
+    public ClusterNode(int nodeId, Map<Integer, InetSocketAddress> nodes, StompBroker broker) {
+        if (!nodes.containsKey(nodeId)) {
+            throw new IllegalArgumentException("node " + nodeId + " is not one of the cluster nodes " + nodes.keySet());
+        }
+        this.nodeId = nodeId;
+        this.nodes = new TreeMap<>(nodes);
+        this.nodeIds = this.nodes.keySet().stream().mapToInt(Integer::intValue).toArray();
+        this.broker = broker;
+        broker.setCluster(this);
+    }
+
+    /**
+     * @return the node configured by the stomp.cluster.nodes and
+     *         stomp.cluster.nodeId system properties, or null if the server does
+     *         not run in a cluster
+     */
+    public static ClusterNode fromSystemProperties(StompBroker broker) {
+        String nodesSpec = System.getProperty("stomp.cluster.nodes");
+        if (nodesSpec == null || nodesSpec.isEmpty()) {
+            return null;
+        }
+        Integer nodeId = Integer.getInteger("stomp.cluster.nodeId");
+        if (nodeId == null) {
+            throw new IllegalArgumentException("stomp.cluster.nodeId must be set together with stomp.cluster.nodes");
+        }
+
+        // id=host:port,id=host:port,...
+        Map<Integer, InetSocketAddress> nodes = new TreeMap<>();
+        for (String node : nodesSpec.split(",")) {
+            String[] idAndAddress = node.trim().split("=", 2);
+            int colon = idAndAddress[1].lastIndexOf(':');
+            nodes.put(Integer.parseInt(idAndAddress[0]), new InetSocketAddress(
+                    idAndAddress[1].substring(0, colon),
+                    Integer.parseInt(idAndAddress[1].substring(colon + 1))));
+        }
+        return new ClusterNode(nodeId, nodes, broker);
+    }
+
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Starts listening for the peers with a higher id and dialing the ones with
+     * a lower id. Links that go down are dialed again until {@link #close()}.
+     */
+    public void start() throws IOException {
+        serverSock = new ServerSocket();
+        serverSock.bind(new InetSocketAddress(nodes.get(nodeId).getPort()));
+        startDaemon("cluster-accept", this::acceptLoop);
+
+        for (int peerId : nodeIds) {
+            if (peerId < nodeId) {
+                startDaemon("cluster-dial-" + peerId, () -> dialLoop(peerId));
+            }
+        }
+        LINK_EVENT.info("node " + nodeId + " listening on " + nodes.get(nodeId));
+    }
+
+    public void close() throws IOException {
+        running = false;
+        if (serverSock != null) {
+            serverSock.close();
+        }
+        for (PeerLink link : peers.values()) {
+            link.close();
+        }
+    }
+
+    /* ================= Routing ================= */
+
+    /**
+     * Sends a message published on this node to every peer with local
+     * subscribers of its destination.
+     */
+    public void forward(String destination, String body) {
+        forward(destination, body, null);
+    }
+
+    /**
+     * Same as {@link #forward(String, String)}, keeping the conflation key of
+     * the message, if any.
+     */
+    public void forward(String destination, String body, String conflationKey) {
+        String frame = null;
+        for (PeerLink link : peers.values()) {
+            if (link.hasInterest(destination)) {
+                if (frame == null) {
+                    frame = "PUBLISH\ndestination:" + destination + "\n"
+                            + (conflationKey == null ? "" : "conflation-key:" + conflationKey + "\n")
+                            + "\n" + body;
+                }
+                link.send(frame);
+            }
+        }
+    }
+
+    @Override
+    public void channelActive(String channel) {
+        localInterest.add(channel);
+        broadcast("INTEREST\ndestination:" + channel + "\n\n");
+    }
+
+    @Override
+    public void channelInactive(String channel) {
+        localInterest.remove(channel);
+        broadcast("UNINTEREST\ndestination:" + channel + "\n\n");
+    }
+
+    /* ================= Logins ================= */
+
+    @Override
+    public Decision acquire(String username, int connectionId) {
+        int owner = ownerOf(username);
+        Decision decision;
+
+        if (owner == nodeId) {
+            decision = claim(username, holder(nodeId, connectionId)) ? Decision.GRANTED : Decision.REFUSED;
+        } else {
+            Boolean answer = requestClaim(owner, username, connectionId);
+            // an unreachable owner cannot tell whether the user is logged in
+            // elsewhere, and granting it could log the user in twice
+            decision = answer == null ? Decision.UNKNOWN : answer ? Decision.GRANTED : Decision.REFUSED;
+        }
+
+        if (decision == Decision.GRANTED) {
+            localSessions.put(username, connectionId);
+        }
+        return decision;
+    }
+
+    @Override
+    public void release(String username, int connectionId) {
+        if (!localSessions.remove(username, connectionId)) {
+            return; // not a login held by this session
+        }
+
+        int owner = ownerOf(username);
+        if (owner == nodeId) {
+            claims.remove(username, holder(nodeId, connectionId));
+        } else {
+            PeerLink link = peers.get(owner);
+            if (link != null) {
+                link.send("RELEASE\nuser:" + username + "\nsession:" + connectionId + "\n\n");
+            }
+        }
+    }
+
+    private boolean claim(String username, long holder) {
+        Long existing = claims.putIfAbsent(username, holder);
+        return existing == null || existing == holder;
+    }
+
+    private Boolean requestClaim(int owner, String username, int connectionId) {
+        PeerLink link = peers.get(owner);
+        if (link == null) {
+            return null;
+        }
+
+        int requestId = requestIdCounter.incrementAndGet();
+        PendingClaim pending = new PendingClaim(owner);
+        pendingClaims.put(requestId, pending);
+        try {
+            link.send("CLAIM\nuser:" + username +
+                    "\nsession:" + connectionId +
+                    "\nrequest:" + requestId + "\n\n");
+            return pending.result.get(CLAIM_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (Exception ex) {
+            return null;
+        } finally {
+            pendingClaims.remove(requestId);
+        }
+    }
+
+    private int ownerOf(String username) {
+        return nodeIds[Math.floorMod(username.hashCode(), nodeIds.length)];
+    }
+
+    private static long holder(int nodeId, int connectionId) {
+        return ((long) nodeId << 32) | (connectionId & 0xffffffffL);
+    }
+
+    /* ================= Links ================= */
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket sock = serverSock.accept();
+                startDaemon("cluster-link", () -> runLink(sock, -1));
+            } catch (IOException ex) {
+                if (running) {
+                    ACCEPT_FAILED.warn(ex);
+                }
+            }
+        }
+    }
+
+    private void dialLoop(int peerId) {
+        while (running) {
+            try {
+                Socket sock = new Socket();
+                sock.connect(nodes.get(peerId), CONNECT_TIMEOUT_MILLIS);
+                runLink(sock, peerId);
+            } catch (IOException ex) {
+                // peer not up yet
+            }
+
+            try {
+                Thread.sleep(RECONNECT_DELAY_MILLIS);
+            } catch (InterruptedException ex) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Runs a link until it is closed. Links we dialed know their peer up front,
+     * accepted links learn it from the HELLO frame.
+     */
+    private void runLink(Socket sock, int peerId) {
+        try {
+            sock.setTcpNoDelay(true);
+        } catch (IOException ex) {
+            // not critical
+        }
+
+        PeerLink link = new PeerLink(this, sock);
+        if (peerId >= 0) {
+            link.send("HELLO\nnode:" + nodeId + "\n\n");
+            linkUp(link, peerId);
+        }
+
+        link.run();
+        linkDown(link);
+    }
+
+    private void linkUp(PeerLink link, int peerId) {
+        link.setPeerId(peerId);
+        PeerLink previous = peers.put(peerId, link);
+        if (previous != null && previous != link) {
+            previous.close();
+        }
+
+        for (String destination : localInterest) {
+            link.send("INTEREST\ndestination:" + destination + "\n\n");
+        }
+
+        // the peer may have restarted and lost the logins it owns
+        for (Map.Entry<String, Integer> session : localSessions.entrySet()) {
+            if (ownerOf(session.getKey()) == peerId) {
+                link.send("CLAIM\nuser:" + session.getKey() +
+                        "\nsession:" + session.getValue() +
+                        "\nrequest:0\n\n");
+            }
+        }
+        LINK_EVENT.info("node " + nodeId + " linked with node " + peerId);
+    }
+
+    private void linkDown(PeerLink link) {
+        int peerId = link.getPeerId();
+        if (peerId < 0 || !peers.remove(peerId, link)) {
+            return;
+        }
+
+        // the logins held on the peer are gone with it
+        claims.values().removeIf(holder -> (int) (holder >>> 32) == peerId);
+        for (PendingClaim pending : pendingClaims.values()) {
+            if (pending.owner == peerId) {
+                pending.result.complete(null);
+            }
+        }
+        LINK_EVENT.info("node " + nodeId + " lost node " + peerId);
+    }
+
+    /* package */ void onFrame(PeerLink link, String command, Map<String, String> headers, String body) {
+        switch (command) {
+            case "HELLO":
+                linkUp(link, Integer.parseInt(headers.get("node")));
+                break;
+
+            case "INTEREST":
+                link.addInterest(headers.get("destination"));
+                break;
+
+            case "UNINTEREST":
+                link.removeInterest(headers.get("destination"));
+                break;
+
+            case "PUBLISH": {
+                String destination = headers.get("destination");
+                String conflationKey = headers.get("conflation-key");
+                broker.executeFor(destination, () -> broker.deliverLocal(destination, body, conflationKey));
+                break;
+            }
+
+            case "CLAIM": {
+                String username = headers.get("user");
+                String session = headers.get("session");
+                boolean granted = claim(username, holder(link.getPeerId(), Integer.parseInt(session)));
+                link.send("CLAIM-RESULT\nrequest:" + headers.get("request") + "\ngranted:" + granted
+                        + "\nuser:" + username + "\nsession:" + session + "\n\n");
+                break;
+            }
+
+            case "CLAIM-RESULT": {
+                int requestId = Integer.parseInt(headers.get("request"));
+                boolean granted = Boolean.parseBoolean(headers.get("granted"));
+                PendingClaim pending = pendingClaims.get(requestId);
+                if (pending != null) {
+                    pending.result.complete(granted);
+                } else if (!granted) {
+                    // claimed again after the owner restarted, and logged in meanwhile
+                    // through another node: the session the owner knows of wins
+                    endConflictingSession(headers.get("user"), Integer.parseInt(headers.get("session")));
+                }
+                break;
+            }
+
+            case "RELEASE":
+                claims.remove(headers.get("user"), holder(link.getPeerId(), Integer.parseInt(headers.get("session"))));
+                break;
+
+            default:
+                UNKNOWN_FRAME.warn(command);
+        }
+    }
+
+    private void endConflictingSession(String username, int connectionId) {
+        if (!localSessions.remove(username, connectionId)) {
+            return; // logged out meanwhile
+        }
+        LOGIN_CONFLICT.warn(username + " is logged in on another node, closing session " + connectionId);
+        // ended by the connection's own protocol, not by this link's reader
+        StompMessagingProtocolImpl protocol = broker.protocolOf(connectionId);
+        if (protocol == null || !protocol.endSession("User already logged in",
+                "User " + username + " is logged in on another node.")) {
+            StompSessions sessions = broker.getSessions();
+            if (sessions != null) {
+                sessions.endParkedLater(username);
+            }
+        }
+    }
+
+    private void broadcast(String frame) {
+        for (PeerLink link : peers.values()) {
+            link.send(frame);
+        }
+    }
+
+    private static void startDaemon(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static class PendingClaim {
+
+        private final int owner;
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        PendingClaim(int owner) {
+            this.owner = owner;
+        }
+    }
+}
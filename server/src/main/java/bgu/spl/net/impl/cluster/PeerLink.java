@@ -0,0 +1,97 @@
+package bgu.spl.net.impl.cluster;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import bgu.spl.net.api.MessagingProtocol;
+import bgu.spl.net.impl.stomp.StompEncoderDecoder;
+import bgu.spl.net.srv.BlockingConnectionHandler;
+
+/**
+ * A TCP link to another cluster node. Frames are exchanged with the STOMP
+ * encoding over a regular {@link BlockingConnectionHandler}.
+ */
+class PeerLink implements MessagingProtocol<String> {
+
+    private final ClusterNode node;
+    private final BlockingConnectionHandler<String> handler;
+    // destinations the peer has local subscribers for
+    private final Set<String> interest = ConcurrentHashMap.newKeySet();
+    private volatile int peerId = -1;
+
+    PeerLink(ClusterNode node, Socket sock) {
+        this.node = node;
+        this.handler = new BlockingConnectionHandler<>(sock, new StompEncoderDecoder(), this);
+    }
+
+    /**
+     * Reads frames from the peer until the link is closed.
+     */
+    void run() {
+        handler.run();
+    }
+
+    void send(String frame) {
+        handler.send(frame);
+    }
+
+    void close() {
+        try {
+            handler.close();
+        } catch (IOException ex) {
+            // the link is gone anyway
+        }
+    }
+
+    int getPeerId() {
+        return peerId;
+    }
+
+    void setPeerId(int peerId) {
+        this.peerId = peerId;
+    }
+
+    boolean hasInterest(String destination) {
+        return interest.contains(destination);
+    }
+
+    void addInterest(String destination) {
+        interest.add(destination);
+    }
+
+    void removeInterest(String destination) {
+        interest.remove(destination);
+    }
+
+    @Override
+    public String process(String frame) {
+        if (frame.isEmpty()) {
+            return null;
+        }
+
+        int headersEnd = frame.indexOf("\n\n");
+        String head = headersEnd < 0 ? frame : frame.substring(0, headersEnd);
+        String body = headersEnd < 0 ? "" : frame.substring(headersEnd + 2);
+
+        String[] lines = head.split("\n");
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            String[] parts = lines[i].split(":", 2);
+            if (parts.length == 2) {
+                headers.put(parts[0], parts[1]);
+            }
+        }
+
+        node.onFrame(this, lines[0], headers, body);
+        return null;
+    }
+
+    @Override
+    public boolean shouldTerminate() {
+        return false;
+    }
+}
@@ -0,0 +1,328 @@
+package bgu.spl.net.impl.data;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory indexes of the audit trail that is also logged in SQL: user
+ * registrations, login sessions per user and file uploads per user and game.
+ * They are updated as the events happen (and warmed from SQL at startup), so
+ * reports are served without a round trip to the SQL server. Every index is
+ * an append-only history, so a page of a report costs a constant time per row.
+ *
+ * Each history keeps the latest entries only, up to -Dstomp.audit.maxEntries
+ * (100000 by default) registrations, login sessions and uploads; older ones
+ * are evicted, along with the per user and per game entries, and only remain
+ * in SQL.
+ */
+public class AuditIndex {
+
+	/** Same format as SQLite's datetime('now'), which is UTC. */
+	public static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+	private final int maxEntries;
+	private final History<Registration> registrations;
+	private final History<LoginSession> logins;
+	private final ConcurrentHashMap<String, History<LoginSession>> loginsByUser = new ConcurrentHashMap<>();
+	private final History<Upload> uploads;
+	private final ConcurrentHashMap<String, History<Upload>> uploadsByUser = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, History<Upload>> uploadsByGame = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, History<Upload>> uploadsByUserAndGame = new ConcurrentHashMap<>();
+
+	public AuditIndex() {
+		this(Integer.getInteger("stomp.audit.maxEntries", 100000));
+	}
+
+	/**
+	 * @param maxEntries the registrations, login sessions and uploads kept each
+	 */
+	public AuditIndex(int maxEntries) {
+		this.maxEntries = maxEntries;
+		registrations = new History<>(maxEntries);
+		logins = new History<>(maxEntries);
+		uploads = new History<>(maxEntries);
+	}
+
+	public static String now() {
+		return LocalDateTime.now(ZoneOffset.UTC).format(TIME_FORMAT);
+	}
+
+	/* ================= Recording ================= */
+
+	// Recording is serialized, so an entry evicted from a history has been
+	// added to the per user and per game ones, and is their oldest entry.
+
+	public synchronized void recordRegistration(String username, String time) {
+		registrations.add(new Registration(username, time));
+	}
+
+	public synchronized void recordLogin(String username, String loginTime, String logoutTime) {
+		LoginSession session = new LoginSession(username, loginTime, logoutTime);
+		LoginSession evicted = logins.add(session);
+		add(loginsByUser, username, session);
+		if (evicted != null) {
+			evict(loginsByUser, evicted.username, evicted);
+		}
+	}
+
+	/**
+	 * Closes the latest open login session of the user.
+	 */
+	public void recordLogout(String username, String time) {
+		History<LoginSession> sessions = loginsByUser.get(username);
+		if (sessions == null) {
+			return;
+		}
+		LoginSession last = sessions.last();
+		if (last != null && last.logoutTime == null) {
+			last.logoutTime = time;
+		}
+	}
+
+	public synchronized void recordUpload(String username, String filename, String game, String time) {
+		Upload upload = new Upload(username, filename, game, time);
+		Upload evicted = uploads.add(upload);
+		add(uploadsByUser, username, upload);
+		add(uploadsByGame, game, upload);
+		add(uploadsByUserAndGame, userAndGame(username, game), upload);
+		if (evicted != null) {
+			evict(uploadsByUser, evicted.username, evicted);
+			evict(uploadsByGame, evicted.game, evicted);
+			evict(uploadsByUserAndGame, userAndGame(evicted.username, evicted.game), evicted);
+		}
+	}
+
+	private <E> void add(ConcurrentHashMap<String, History<E>> histories, String key, E entry) {
+		histories.computeIfAbsent(key, k -> new History<>(maxEntries)).add(entry);
+	}
+
+	// drops the history of a key once its last entry is evicted
+	private static <E> void evict(ConcurrentHashMap<String, History<E>> histories, String key, E entry) {
+		histories.computeIfPresent(key, (k, history) -> history.evict(entry) && history.size() == 0 ? null : history);
+	}
+
+	/* ================= Reports ================= */
+
+	/**
+	 * @return up to limit registrations, in registration order, skipping the first offset ones
+	 */
+	public List<Registration> registrations(int offset, int limit) {
+		return registrations.page(offset, limit);
+	}
+
+	public int registrationCount() {
+		return registrations.size();
+	}
+
+	/**
+	 * @return how many registrations were evicted, oldest first
+	 */
+	public long evictedRegistrations() {
+		return registrations.evicted();
+	}
+
+	/**
+	 * @param username only the sessions of this user, or null for everybody's
+	 * @return up to limit sessions, in login order, skipping the first offset ones
+	 */
+	public List<LoginSession> loginSessions(String username, int offset, int limit) {
+		return pageOf(username == null ? logins : loginsByUser.get(username), offset, limit);
+	}
+
+	public int loginSessionCount(String username) {
+		return sizeOf(username == null ? logins : loginsByUser.get(username));
+	}
+
+	public long evictedLoginSessions() {
+		return logins.evicted();
+	}
+
+	/**
+	 * @return the users with login sessions, by name
+	 */
+	public List<String> loginUsers() {
+		return sorted(loginsByUser.keySet());
+	}
+
+	/**
+	 * @return the users with uploads, by name
+	 */
+	public List<String> uploadUsers() {
+		return sorted(uploadsByUser.keySet());
+	}
+
+	/**
+	 * @param username only the uploads of this user, or null for everybody's
+	 * @param game only the uploads reported to this game channel, or null for all games
+	 * @return up to limit uploads, in upload order, skipping the first offset ones
+	 */
+	public List<Upload> uploads(String username, String game, int offset, int limit) {
+		return pageOf(uploadsOf(username, game), offset, limit);
+	}
+
+	public int uploadCount(String username, String game) {
+		return sizeOf(uploadsOf(username, game));
+	}
+
+	public long evictedUploads() {
+		return uploads.evicted();
+	}
+
+	private History<Upload> uploadsOf(String username, String game) {
+		if (username == null && game == null) {
+			return uploads;
+		} else if (game == null) {
+			return uploadsByUser.get(username);
+		} else if (username == null) {
+			return uploadsByGame.get(game);
+		}
+		return uploadsByUserAndGame.get(userAndGame(username, game));
+	}
+
+	private static String userAndGame(String username, String game) {
+		return username + '\0' + game;
+	}
+
+	private static List<String> sorted(Collection<String> names) {
+		List<String> list = new ArrayList<>(names);
+		Collections.sort(list);
+		return list;
+	}
+
+	private static <E> List<E> pageOf(History<E> history, int offset, int limit) {
+		return history == null ? Collections.emptyList() : history.page(offset, limit);
+	}
+
+	private static int sizeOf(History<?> history) {
+		return history == null ? 0 : history.size();
+	}
+
+	/* ================= Records ================= */
+
+	public static class Registration {
+		public final String username;
+		public final String time; // null when unknown
+
+		Registration(String username, String time) {
+			this.username = username;
+			this.time = time;
+		}
+	}
+
+	public static class LoginSession {
+		public final String username;
+		public final String loginTime;
+		private volatile String logoutTime; // null while logged in
+
+		LoginSession(String username, String loginTime, String logoutTime) {
+			this.username = username;
+			this.loginTime = loginTime;
+			this.logoutTime = logoutTime;
+		}
+
+		public String getLogoutTime() {
+			return logoutTime;
+		}
+	}
+
+	public static class Upload {
+		public final String username;
+		public final String filename;
+		public final String game;
+		public final String time;
+
+		Upload(String username, String filename, String game, String time) {
+			this.username = username;
+			this.filename = filename;
+			this.game = game;
+			this.time = time;
+		}
+	}
+
+	// the latest entries, up to a capacity, with random access to their pages;
+	// offsets count from the oldest entry kept
+	private static class History<E> {
+		private final int capacity;
+		private Object[] entries = new Object[8]; // a ring, grown up to the capacity
+		private int head = 0; // the oldest entry
+		private int size = 0;
+		private long evicted = 0;
+
+		History(int capacity) {
+			this.capacity = Math.max(1, capacity);
+		}
+
+		/**
+		 * @return the oldest entry, evicted to make room, or null
+		 */
+		synchronized E add(E entry) {
+			E oldest = null;
+			if (size == capacity) {
+				oldest = get(0);
+				removeOldest();
+			} else if (size == entries.length) {
+				Object[] grown = new Object[(int) Math.min(capacity, 2L * entries.length)];
+				for (int i = 0; i < size; i++) {
+					grown[i] = entries[(head + i) % entries.length];
+				}
+				entries = grown;
+				head = 0;
+			}
+			entries[(head + size) % entries.length] = entry;
+			size++;
+			return oldest;
+		}
+
+		/**
+		 * Evicts the entry if it is the oldest one.
+		 * @return true if it was
+		 */
+		synchronized boolean evict(E entry) {
+			if (size == 0 || entries[head] != entry) {
+				return false;
+			}
+			removeOldest();
+			return true;
+		}
+
+		synchronized E last() {
+			return size == 0 ? null : get(size - 1);
+		}
+
+		synchronized int size() {
+			return size;
+		}
+
+		synchronized long evicted() {
+			return evicted;
+		}
+
+		synchronized List<E> page(int offset, int limit) {
+			int from = Math.min(Math.max(offset, 0), size);
+			int to = (int) Math.min(size, (long) from + Math.max(limit, 0));
+			List<E> page = new ArrayList<>(to - from);
+			for (int i = from; i < to; i++) {
+				page.add(get(i));
+			}
+			return page;
+		}
+
+		@SuppressWarnings("unchecked")
+		private E get(int index) {
+			return (E) entries[(head + index) % entries.length];
+		}
+
+		private void removeOldest() {
+			entries[head] = null;
+			head = (head + 1) % entries.length;
+			size--;
+			evicted++;
+		}
+	}
+}
@@ -4,16 +4,46 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import bgu.spl.net.srv.ActorThreadPool;
+import bgu.spl.net.srv.AdmissionControl;
+import bgu.spl.net.srv.Log;
 
 public class Database {
+	private static final Log.Site SQL_ERROR = Log.site("SQL Error");
+	private static final AdmissionControl ADMISSION = AdmissionControl.shared(); // null if disabled
+	// A read-through cache of the users table: unknown usernames are loaded
+	// from SQL, and logged out users are evicted once idle or when the cache is
+	// over its size (-Dstomp.users.cacheSize, -Dstomp.users.idleSeconds).
 	private final ConcurrentHashMap<String, User> userMap;
+	// <username, load> for the SQL lookups in progress, shared by concurrent logins
+	private final ConcurrentHashMap<String, CompletableFuture<User>> userLoads;
+	private final int maxCachedUsers;
+	private final long idleMillis;
+	private final AtomicBoolean evicting = new AtomicBoolean(false);
+	private volatile long nextIdleEviction;
 	private final ConcurrentHashMap<Integer, User> connectionsIdMap;
 	private final String sqlHost;
 	private final int sqlPort;
+	private volatile LoginArbiter loginArbiter = null;
+	private final AuditIndex audit = new AuditIndex();
+	// resolved when the users table cannot be read, never cached
+	private static final User LOOKUP_FAILED = new User(-1, "", "");
 
 	private Database() {
 		userMap = new ConcurrentHashMap<>();
+		userLoads = new ConcurrentHashMap<>();
+		maxCachedUsers = Integer.getInteger("stomp.users.cacheSize", 10000);
+		idleMillis = TimeUnit.SECONDS.toMillis(Long.getLong("stomp.users.idleSeconds", 900));
+		nextIdleEviction = System.currentTimeMillis() + idleMillis;
 		connectionsIdMap = new ConcurrentHashMap<>();
 		// SQL server connection details
 		this.sqlHost = "127.0.0.1";
@@ -30,6 +60,9 @@ public class Database {
 	 * @return Result string from SQL server
 	 */
 	private String executeSQL(String sql) {
+		// lets an elastic reactor pool compensate for the worker waiting here
+		ActorThreadPool.beginBlocking();
+		long start = System.nanoTime();
 		try (Socket socket = new Socket(sqlHost, sqlPort);
 			 PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
 			 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
@@ -48,8 +81,13 @@ public class Database {
 			return response.toString();
 			
 		} catch (Exception e) {
-			System.err.println("SQL Error: " + e.getMessage());
+			SQL_ERROR.warn(e.getMessage());
 			return "ERROR:" + e.getMessage();
+		} finally {
+			ActorThreadPool.endBlocking();
+			if (ADMISSION != null) {
+				ADMISSION.sqlCompleted(System.nanoTime() - start);
+			}
 		}
 	}
 
@@ -66,28 +104,177 @@ public class Database {
 		connectionsIdMap.putIfAbsent(user.getConnectionId(), user);
 	}
 
+	/**
+	 * @return a live view of every cached user
+	 */
+	public Collection<User> getUsers() {
+		return userMap.values();
+	}
+
+	/**
+	 * Registers a user known from a previous run (e.g. read from a snapshot),
+	 * logged out and without logging a new registration in SQL.
+	 * @return false if a user with this name is already registered
+	 */
+	public boolean restoreUser(String username, String password) {
+		return userMap.putIfAbsent(username, new User(-1, username, password)) == null;
+	}
+
+	/**
+	 * @return whether the user is in memory (e.g. logged in) with this password
+	 */
+	public boolean checkPassword(String username, String password) {
+		User user = userMap.get(username);
+		return user != null && user.password.equals(password);
+	}
+
+	public void setLoginArbiter(LoginArbiter loginArbiter) {
+		this.loginArbiter = loginArbiter;
+	}
+
 	public LoginStatus login(int connectionId, String username, String password) {
 		if (connectionsIdMap.containsKey(connectionId)) {
 			return LoginStatus.CLIENT_ALREADY_CONNECTED;
 		}
-		if (addNewUserCase(connectionId, username, password)) {
-			// Log new user registration in SQL
-			String sql = String.format(
-				"INSERT INTO users (username, password, registration_date) VALUES ('%s', '%s', datetime('now'))",
-				escapeSql(username), escapeSql(password)
-			);
-			executeSQL(sql);
-			
-			// Log login
-			logLogin(username);
-			return LoginStatus.ADDED_NEW_USER;
-		} else {
-			LoginStatus status = userExistsCase(connectionId, username, password);
+		LoginArbiter arbiter = loginArbiter;
+		if (arbiter != null) {
+			switch (arbiter.acquire(username, connectionId)) {
+				case REFUSED:
+					return LoginStatus.ALREADY_LOGGED_IN;
+				case UNKNOWN:
+					return LoginStatus.LOGIN_UNAVAILABLE;
+				default:
+					break;
+			}
+		}
+		try {
+			LoginStatus status = null;
+			while (status == null) {
+				User known = resolveUser(username);
+				if (known == LOOKUP_FAILED) {
+					// registering the user could shadow an existing one and skip its password check
+					status = LoginStatus.LOGIN_UNAVAILABLE;
+				} else if (known == null && addNewUserCase(connectionId, username, password)) {
+					// Log new user registration in SQL
+					String sql = String.format(
+						"INSERT INTO users (username, password, registration_date) VALUES ('%s', '%s', datetime('now'))",
+						escapeSql(username), escapeSql(password)
+					);
+					if (isError(executeSQL(sql))) {
+						// without the row the next load would not know the user, nor its password
+						removeNewUser(connectionId, username);
+						if (arbiter != null) {
+							arbiter.release(username, connectionId);
+						}
+						return LoginStatus.LOGIN_UNAVAILABLE;
+					}
+					audit.recordRegistration(username, AuditIndex.now());
+					
+					// Log login
+					logLogin(username);
+					return LoginStatus.ADDED_NEW_USER;
+				} else {
+					// null if the user was evicted meanwhile
+					status = userExistsCase(connectionId, username, password);
+				}
+			}
 			if (status == LoginStatus.LOGGED_IN_SUCCESSFULLY) {
 				// Log successful login in SQL
 				logLogin(username);
+			} else if (arbiter != null) {
+				arbiter.release(username, connectionId);
 			}
 			return status;
+		} finally {
+			evictIdleUsers();
+		}
+	}
+
+	/**
+	 * @return the cached user, or the one loaded from the users table, or null
+	 *         if there is no such user, or LOOKUP_FAILED if SQL cannot tell
+	 */
+	private User resolveUser(String username) {
+		User user = userMap.get(username);
+		if (user == null) {
+			CompletableFuture<User> load = new CompletableFuture<>();
+			CompletableFuture<User> pending = userLoads.putIfAbsent(username, load);
+			if (pending != null) {
+				return pending.join(); // somebody else is loading it
+			}
+			try {
+				user = loadUser(username);
+				load.complete(user);
+			} catch (RuntimeException ex) {
+				load.completeExceptionally(ex);
+				throw ex;
+			} finally {
+				userLoads.remove(username, load);
+			}
+		}
+		if (user != null && user != LOOKUP_FAILED) {
+			user.touch();
+		}
+		return user;
+	}
+
+	private User loadUser(String username) {
+		String result = executeSQL(String.format(
+			"SELECT password FROM users WHERE username='%s'",
+			escapeSql(username)
+		));
+		if (isError(result)) {
+			return LOOKUP_FAILED;
+		}
+		List<String[]> rows = parseRows(result);
+		if (rows.isEmpty()) {
+			return null;
+		}
+		User loaded = new User(-1, username, rows.get(0)[0]);
+		User cached = userMap.putIfAbsent(username, loaded);
+		return cached != null ? cached : loaded;
+	}
+
+	/**
+	 * Drops the logged out users idle for too long, and the least recently
+	 * used ones while the cache is over its size. Runs at most once at a time,
+	 * and only when there may be something to drop.
+	 */
+	private void evictIdleUsers() {
+		long now = System.currentTimeMillis();
+		boolean overSize = userMap.size() > maxCachedUsers;
+		if (!overSize && now < nextIdleEviction) {
+			return;
+		}
+		if (!evicting.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			nextIdleEviction = now + Math.max(idleMillis / 4, 1000);
+
+			List<User> candidates = new ArrayList<>();
+			for (User user : userMap.values()) {
+				if (!user.isLoggedIn()) {
+					candidates.add(user);
+				}
+			}
+			candidates.sort(Comparator.comparingLong(User::getLastUsed));
+
+			// evict a tenth more than needed so that the next logins don't sweep again
+			int excess = overSize ? userMap.size() - maxCachedUsers * 9 / 10 : 0;
+			for (User user : candidates) {
+				boolean idle = now - user.getLastUsed() > idleMillis;
+				if (!idle && excess <= 0) {
+					break; // the rest were used more recently
+				}
+				synchronized (user) {
+					if (!user.isLoggedIn() && userMap.remove(user.name, user)) {
+						excess--;
+					}
+				}
+			}
+		} finally {
+			evicting.set(false);
 		}
 	}
 
@@ -97,12 +284,18 @@ public class Database {
 			escapeSql(username)
 		);
 		executeSQL(sql);
+		audit.recordLogin(username, AuditIndex.now(), null);
 	}
 
 	private LoginStatus userExistsCase(int connectionId, String username, String password) {
 		User user = userMap.get(username);
+		if (user == null) {
+			return null;
+		}
 		synchronized (user) {
-			if (user.isLoggedIn()) {
+			if (userMap.get(username) != user) {
+				return null; // evicted before we got the lock
+			} else if (user.isLoggedIn()) {
 				return LoginStatus.ALREADY_LOGGED_IN;
 			} else if (!user.password.equals(password)) {
 				return LoginStatus.WRONG_PASSWORD;
@@ -115,6 +308,25 @@ public class Database {
 		}
 	}
 
+	/**
+	 * @return whether an executeSQL result reports a failure, of the SQL
+	 *         server or of the connection to it
+	 */
+	private static boolean isError(String result) {
+		return result.startsWith("ERROR") || result.startsWith("SQL ERROR");
+	}
+
+	// undoes addNewUserCase
+	private void removeNewUser(int connectionId, String username) {
+		User user = connectionsIdMap.remove(connectionId);
+		if (user != null) {
+			synchronized (user) {
+				user.logout();
+				userMap.remove(username, user);
+			}
+		}
+	}
+
 	private boolean addNewUserCase(int connectionId, String username, String password) {
 		if (!userMap.containsKey(username)) {
 			synchronized (userMap) {
@@ -140,9 +352,16 @@ public class Database {
 				escapeSql(user.name)
 			);
 			executeSQL(sql);
+			audit.recordLogout(user.name, AuditIndex.now());
 			
 			user.logout();
+			user.touch();
 			connectionsIdMap.remove(connectionsId);
+
+			LoginArbiter arbiter = loginArbiter;
+			if (arbiter != null) {
+				arbiter.release(user.name, connectionsId);
+			}
 		}
 	}
 
@@ -159,10 +378,107 @@ public class Database {
 			escapeSql(username), escapeSql(filename), escapeSql(gameChannel)
 		);
 		executeSQL(sql);
+		audit.recordUpload(username, filename, gameChannel, AuditIndex.now());
+	}
+
+	/**
+	 * Fills the audit indexes with the history logged in SQL by previous runs.
+	 * Should be called once at startup, before any client logs in.
+	 * @return false if the SQL server could not be queried
+	 */
+	public boolean warmAudit() {
+		// Every row is selected as a single value with unit separators between
+		// the columns, which parses the same whatever the SQL server's row format.
+		List<String[]> users = queryRows(
+			"SELECT username || char(31) || ifnull(registration_date, '') FROM users ORDER BY registration_date",
+			"SELECT username FROM users");
+		List<String[]> logins = queryRows(
+			"SELECT username || char(31) || login_time || char(31) || ifnull(logout_time, '') " +
+			"FROM login_history ORDER BY login_time");
+		List<String[]> uploads = queryRows(
+			"SELECT username || char(31) || filename || char(31) || ifnull(upload_time, '') || char(31) || ifnull(game_channel, '') " +
+			"FROM file_tracking ORDER BY upload_time",
+			"SELECT username || char(31) || filename || char(31) || ifnull(upload_time, '') " +
+			"FROM file_tracking ORDER BY upload_time");
+		if (users == null || logins == null || uploads == null) {
+			return false;
+		}
+
+		for (String[] row : users) {
+			audit.recordRegistration(row[0], field(row, 1));
+		}
+		for (String[] row : logins) {
+			audit.recordLogin(row[0], field(row, 1), field(row, 2));
+		}
+		for (String[] row : uploads) {
+			String game = field(row, 3);
+			audit.recordUpload(row[0], field(row, 1), game == null ? "" : game, field(row, 2));
+		}
+		System.out.println("Audit indexes warmed from SQL: " + users.size() + " users, " +
+			logins.size() + " logins, " + uploads.size() + " uploads");
+		return true;
+	}
+
+	/**
+	 * @return the in-memory audit indexes, for paged and filtered reports
+	 */
+	public AuditIndex getAudit() {
+		return audit;
+	}
+
+	/**
+	 * Runs the first query the SQL server accepts (e.g. falling back to fewer
+	 * columns on an older schema).
+	 * @return the parsed rows, or null if every query failed
+	 */
+	private List<String[]> queryRows(String... queries) {
+		for (String sql : queries) {
+			String result = executeSQL(sql);
+			if (!result.startsWith("ERROR") && !result.startsWith("SQL ERROR")) {
+				return parseRows(result);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Parses a SELECT result of single-value rows. Rows are separated by '|',
+	 * after an optional "SUCCESS" status, and are either plain text or a
+	 * Python tuple such as ('value',). Columns are separated by char(31).
+	 */
+	static List<String[]> parseRows(String result) {
+		List<String[]> rows = new ArrayList<>();
+		if (result == null || result.isEmpty()) {
+			return rows;
+		}
+		String[] parts = result.split("\\|");
+		for (int i = 0; i < parts.length; i++) {
+			String row = parts[i];
+			if (i == 0 && row.startsWith("SUCCESS")) {
+				continue;
+			}
+			if (row.startsWith("(") && row.endsWith(")")) {
+				row = row.substring(1, row.length() - 1);
+				if (row.endsWith(",")) {
+					row = row.substring(0, row.length() - 1);
+				}
+				if (row.length() >= 2 && (row.startsWith("'") || row.startsWith("\""))) {
+					row = row.substring(1, row.length() - 1);
+				}
+			}
+			if (!row.isEmpty()) {
+				rows.add(row.split("\u001f", -1));
+			}
+		}
+		return rows;
+	}
+
+	private static String field(String[] row, int index) {
+		return index < row.length && !row[index].isEmpty() && !row[index].equals("None") ? row[index] : null;
 	}
 
 	/**
-	 * Generate and print server report using SQL queries
+	 * Print the server report from the in-memory audit indexes
 	 */
 	public void printReport() {
 		System.out.println(repeat("=", 80));
@@ -172,74 +488,60 @@ public class Database {
 		// List all users
 		System.out.println("\n1. REGISTERED USERS:");
 		System.out.println(repeat("-", 80));
-		String usersSQL = "SELECT username, registration_date FROM users ORDER BY registration_date";
-		String usersResult = executeSQL(usersSQL);
-		if (usersResult.startsWith("SUCCESS")) {
-			String[] parts = usersResult.split("\\|");
-			if (parts.length > 1) {
-				for (int i = 1; i < parts.length; i++) {
-					System.out.println("   " + parts[i]);
-				}
-			} else {
-				System.out.println("   No users registered");
-			}
+		List<AuditIndex.Registration> registrations = audit.registrations(0, Integer.MAX_VALUE);
+		if (registrations.isEmpty()) {
+			System.out.println("   No users registered");
 		}
+		for (AuditIndex.Registration registration : registrations) {
+			System.out.println("   " + registration.username +
+				(registration.time == null ? "" : " " + registration.time));
+		}
+		printEvicted(audit.evictedRegistrations(), "registrations");
 		
 		// Login history for each user
 		System.out.println("\n2. LOGIN HISTORY:");
 		System.out.println(repeat("-", 80));
-		String loginSQL = "SELECT username, login_time, logout_time FROM login_history ORDER BY username, login_time DESC";
-		String loginResult = executeSQL(loginSQL);
-		if (loginResult.startsWith("SUCCESS")) {
-			String[] parts = loginResult.split("\\|");
-			if (parts.length > 1) {
-				String currentUser = "";
-				for (int i = 1; i < parts.length; i++) {
-					String[] fields = parts[i].replace("(", "").replace(")", "").replace("'", "").split(", ");
-					if (fields.length >= 3) {
-						if (!fields[0].equals(currentUser)) {
-							currentUser = fields[0];
-							System.out.println("\n   User: " + currentUser);
-						}
-						System.out.println("      Login:  " + fields[1]);
-						System.out.println("      Logout: " + (fields[2].equals("None") ? "Still logged in" : fields[2]));
-					}
-				}
-			} else {
-				System.out.println("   No login history");
+		if (audit.loginSessionCount(null) == 0) {
+			System.out.println("   No login history");
+		}
+		for (String username : audit.loginUsers()) {
+			List<AuditIndex.LoginSession> sessions = audit.loginSessions(username, 0, Integer.MAX_VALUE);
+			System.out.println("\n   User: " + username);
+			for (AuditIndex.LoginSession session : sessions) {
+				String logout = session.getLogoutTime();
+				System.out.println("      Login:  " + session.loginTime);
+				System.out.println("      Logout: " + (logout == null ? "Still logged in" : logout));
 			}
 		}
+		printEvicted(audit.evictedLoginSessions(), "login sessions");
 		
 		// File uploads for each user
 		System.out.println("\n3. FILE UPLOADS:");
 		System.out.println(repeat("-", 80));
-		String filesSQL = "SELECT username, filename, upload_time, game_channel FROM file_tracking ORDER BY username, upload_time DESC";
-		String filesResult = executeSQL(filesSQL);
-		if (filesResult.startsWith("SUCCESS")) {
-			String[] parts = filesResult.split("\\|");
-			if (parts.length > 1) {
-				String currentUser = "";
-				for (int i = 1; i < parts.length; i++) {
-					String[] fields = parts[i].replace("(", "").replace(")", "").replace("'", "").split(", ");
-					if (fields.length >= 4) {
-						if (!fields[0].equals(currentUser)) {
-							currentUser = fields[0];
-							System.out.println("\n   User: " + currentUser);
-						}
-						System.out.println("      File: " + fields[1]);
-						System.out.println("      Time: " + fields[2]);
-						System.out.println("      Game: " + fields[3]);
-						System.out.println();
-					}
-				}
-			} else {
-				System.out.println("   No files uploaded");
+		if (audit.uploadCount(null, null) == 0) {
+			System.out.println("   No files uploaded");
+		}
+		for (String username : audit.uploadUsers()) {
+			List<AuditIndex.Upload> uploads = audit.uploads(username, null, 0, Integer.MAX_VALUE);
+			System.out.println("\n   User: " + username);
+			for (AuditIndex.Upload upload : uploads) {
+				System.out.println("      File: " + upload.filename);
+				System.out.println("      Time: " + upload.time);
+				System.out.println("      Game: " + upload.game);
+				System.out.println();
 			}
 		}
+		printEvicted(audit.evictedUploads(), "uploads");
 		
 	System.out.println(repeat("=", 80));
 }
 
+private void printEvicted(long evicted, String what) {
+	if (evicted > 0) {
+		System.out.println("   (" + evicted + " older " + what + " are only kept in SQL)");
+	}
+}
+
 private String repeat(String str, int times) {
 	StringBuilder sb = new StringBuilder();
 	for (int i = 0; i < times; i++) {
@@ -250,4 +552,4 @@ private String repeat(String str, int times) {
 
 private static class Instance {
 	static Database instance = new Database();
-}}
\ No newline at end of file
+}}
\ No newline at end of file
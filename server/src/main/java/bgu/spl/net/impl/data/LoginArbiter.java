@@ -0,0 +1,22 @@
+package bgu.spl.net.impl.data;
+
+/**
+ * Decides whether a username may log in beyond this server, e.g. when it is
+ * one node of a cluster and the user may already be logged in on another node.
+ */
+public interface LoginArbiter {
+
+	enum Decision {
+		GRANTED, REFUSED, UNKNOWN // UNKNOWN: cannot be decided right now, e.g. a node is unreachable
+	}
+
+	/**
+	 * @return whether the given session may log in with the username
+	 */
+	Decision acquire(String username, int connectionId);
+
+	/**
+	 * Gives back a login previously acquired by the same session.
+	 */
+	void release(String username, int connectionId);
+}
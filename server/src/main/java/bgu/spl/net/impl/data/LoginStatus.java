@@ -1,5 +1,7 @@
 package bgu.spl.net.impl.data;
 
 public enum LoginStatus {
-	CLIENT_ALREADY_CONNECTED, ADDED_NEW_USER, ALREADY_LOGGED_IN, LOGGED_IN_SUCCESSFULLY, WRONG_PASSWORD
+	CLIENT_ALREADY_CONNECTED, ADDED_NEW_USER, ALREADY_LOGGED_IN, LOGGED_IN_SUCCESSFULLY, WRONG_PASSWORD,
+	// the login cannot be decided right now, the client may try again later
+	LOGIN_UNAVAILABLE
 }
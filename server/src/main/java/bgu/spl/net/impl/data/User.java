@@ -4,7 +4,8 @@ public class User {
 	public final String name;
 	public final String password;
 	private int connectionId;
-	private boolean isLoggedIn = false;
+	private volatile boolean isLoggedIn = false;
+	private volatile long lastUsed = System.currentTimeMillis();
 
 	public User(int connectionId, String name, String password) {
 		this.connectionId = connectionId;
@@ -24,6 +25,14 @@ public class User {
 		isLoggedIn = false;
 	}
 
+	public long getLastUsed() {
+		return lastUsed;
+	}
+
+	public void touch() {
+		lastUsed = System.currentTimeMillis();
+	}
+
 	public int getConnectionId() {
 		return connectionId;
 	}
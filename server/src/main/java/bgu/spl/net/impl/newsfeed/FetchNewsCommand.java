@@ -6,14 +6,36 @@ import java.io.Serializable;
 public class FetchNewsCommand implements Command<NewsFeed> {
 
     private String channel;
+    private long since; // -1 to fetch everything, as a plain list
 
     public FetchNewsCommand(String channel) {
+        this(channel, -1);
+    }
+
+    /**
+     * Fetches the news from the given offset on, as a {@link NewsPage}: pass
+     * the next offset of the previous page to get only the items published
+     * since, or 0 to start from the oldest item held.
+     */
+    public FetchNewsCommand(String channel, long since) {
         this.channel = channel;
+        this.since = since;
+    }
+
+    public String getChannel() {
+        return channel;
+    }
+
+    public long getSince() {
+        return since;
     }
 
     @Override
     public Serializable execute(NewsFeed feed) {
-        return feed.fetch(channel);
+        if (since < 0) {
+            return feed.fetch(channel);
+        }
+        return feed.fetch(channel, since);
     }
 
 }
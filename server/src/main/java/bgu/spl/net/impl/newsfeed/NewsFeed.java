@@ -2,27 +2,114 @@ package bgu.spl.net.impl.newsfeed;
 
 import java.util.ArrayList;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
+/**
+ * News by channel. Every item gets the next offset of its channel, and a
+ * channel keeps its latest items only: at most -Dnewsfeed.maxItems items
+ * (1000 by default) and -Dnewsfeed.maxChars characters of news (1M by
+ * default), the oldest ones are evicted first.
+ */
 public class NewsFeed {
 
-    private ConcurrentHashMap<String, ConcurrentLinkedQueue<String>> channels = new ConcurrentHashMap<>();
+    private final int maxItems;
+    private final long maxChars;
+    private ConcurrentHashMap<String, Channel> channels = new ConcurrentHashMap<>();
 
+    public NewsFeed() {
+        this(Integer.getInteger("newsfeed.maxItems", 1000), Long.getLong("newsfeed.maxChars", 1L << 20));
+    }
+
+    public NewsFeed(int maxItems, long maxChars) {
+        if (maxItems < 1 || maxChars < 1) {
+            throw new IllegalArgumentException("a channel must be able to hold an item");
+        }
+        this.maxItems = maxItems;
+        this.maxChars = maxChars;
+    }
+
+    /**
+     * @return all the items the channel still holds
+     */
     public ArrayList<String> fetch(String channel) {
-        ConcurrentLinkedQueue<String> queue = channels.get(channel);
+        Channel queue = channels.get(channel);
         if (queue == null) {
             return new ArrayList<>(0); //empty
         } else {
-            return new ArrayList<>(queue); //copy of the queue, arraylist is serializable
+            return queue.since(0).getItems();
+        }
+    }
+
+    /**
+     * @return the items of the channel from the given offset on, as far as
+     *         they are still held, and the offset to fetch from next time
+     */
+    public NewsPage fetch(String channel, long since) {
+        Channel queue = channels.get(channel);
+        if (queue == null) {
+            return new NewsPage(0, 0, new ArrayList<>(0));
+        } else {
+            return queue.since(since);
         }
     }
 
     public void publish(String channel, String news) {
-        ConcurrentLinkedQueue<String> queue = channels.computeIfAbsent(channel, k -> new ConcurrentLinkedQueue<>());
+        Channel queue = channels.computeIfAbsent(channel, k -> new Channel());
         queue.add(news);
     }
 
     public void clear() {
         channels.clear();
     }
+
+    // the latest items of a channel, in a ring that grows up to maxItems
+    private class Channel {
+        private String[] ring = new String[Math.min(16, maxItems)];
+        private long first = 0; // offset of the oldest item held
+        private long next = 0;  // offset of the next item
+        private long chars = 0;
+
+        synchronized void add(String news) {
+            if (next - first == ring.length) {
+                if (ring.length < maxItems) {
+                    grow();
+                } else {
+                    evictOldest();
+                }
+            }
+            ring[index(next++)] = news;
+            chars += news.length();
+
+            // the newest item is kept even when it is over the limit on its own
+            while (chars > maxChars && next - first > 1) {
+                evictOldest();
+            }
+        }
+
+        private void evictOldest() {
+            int oldest = index(first++);
+            chars -= ring[oldest].length();
+            ring[oldest] = null;
+        }
+
+        synchronized NewsPage since(long offset) {
+            long from = Math.max(offset, first);
+            ArrayList<String> items = new ArrayList<>((int) Math.max(next - from, 0));
+            for (long i = from; i < next; i++) {
+                items.add(ring[index(i)]);
+            }
+            return new NewsPage(Math.min(from, next), next, items);
+        }
+
+        private void grow() {
+            String[] larger = new String[(int) Math.min((long) ring.length * 2, maxItems)];
+            for (long i = first; i < next; i++) {
+                larger[(int) (i % larger.length)] = ring[index(i)];
+            }
+            ring = larger;
+        }
+
+        private int index(long offset) {
+            return (int) (offset % ring.length);
+        }
+    }
 }
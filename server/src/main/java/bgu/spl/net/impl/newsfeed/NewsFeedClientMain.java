@@ -1,9 +1,13 @@
 package bgu.spl.net.impl.newsfeed;
 
+import bgu.spl.net.impl.rci.BinaryCodec;
+import bgu.spl.net.impl.rci.BinaryEncoderDecoder;
 import bgu.spl.net.impl.rci.RCIClient;
 
 public class NewsFeedClientMain {
 
+    private static final BinaryCodec CODEC = NewsFeedCodec.create();
+
     public static void main(String[] args) throws Exception {
         if (args.length == 0) {
             args = new String[]{"127.0.0.1"};
@@ -13,10 +17,11 @@ public class NewsFeedClientMain {
         runFirstClient(args[0]);
         runSecondClient(args[0]);
         runThirdClient(args[0]);
+        runFourthClient(args[0]);
     }
 
     private static void runFirstClient(String host) throws Exception {
-        try (RCIClient c = new RCIClient(host, 7777)) {
+        try (RCIClient c = new RCIClient(host, 7777, new BinaryEncoderDecoder(CODEC))) {
             c.send(new PublishNewsCommand(
                     "jobs",
                     "System Programmer, knowledge in C++, Java and Python required. call 0x134693F"));
@@ -39,16 +44,30 @@ public class NewsFeedClientMain {
     }
 
     private static void runSecondClient(String host) throws Exception {
-        try (RCIClient c = new RCIClient(host, 7777)) {
+        try (RCIClient c = new RCIClient(host, 7777, new BinaryEncoderDecoder(CODEC))) {
             c.send(new FetchNewsCommand("jobs"));
             System.out.println("second client received: " + c.receive());
         }
     }
 
     private static void runThirdClient(String host) throws Exception {
-        try (RCIClient c = new RCIClient(host, 7777)) {
+        try (RCIClient c = new RCIClient(host, 7777, new BinaryEncoderDecoder(CODEC))) {
             c.send(new FetchNewsCommand("headlines"));
             System.out.println("third client received: " + c.receive());
         }
     }
+
+    private static void runFourthClient(String host) throws Exception {
+        try (RCIClient c = new RCIClient(host, 7777, new BinaryEncoderDecoder(CODEC))) {
+            c.send(new FetchNewsCommand("headlines", 0));
+            NewsPage page = (NewsPage) c.receive();
+
+            c.send(new PublishNewsCommand("headlines", "the deadline is extended"));
+            c.receive(); //ok
+
+            // only what was published since the previous fetch
+            c.send(new FetchNewsCommand("headlines", page.getNext()));
+            System.out.println("fourth client received: " + c.receive());
+        }
+    }
 }
@@ -0,0 +1,68 @@
+package bgu.spl.net.impl.newsfeed;
+
+import java.util.ArrayList;
+
+import bgu.spl.net.impl.rci.BinaryCodec;
+
+/**
+ * The binary encoding of the news feed commands, shared by the server and the
+ * clients. The other replies (a String or an ArrayList of strings) have built
+ * in tags.
+ */
+public class NewsFeedCodec {
+
+    private static final int PUBLISH_NEWS = BinaryCodec.FIRST_USER_TAG;
+    private static final int FETCH_NEWS = BinaryCodec.FIRST_USER_TAG + 1;
+    private static final int NEWS_PAGE = BinaryCodec.FIRST_USER_TAG + 2;
+
+    public static BinaryCodec create() {
+        return new BinaryCodec()
+                .register(PUBLISH_NEWS, PublishNewsCommand.class, new BinaryCodec.Type<PublishNewsCommand>() {
+                    @Override
+                    public void write(PublishNewsCommand cmd, BinaryCodec.Output out) {
+                        out.writeString(cmd.getChannel());
+                        out.writeString(cmd.getNews());
+                    }
+
+                    @Override
+                    public PublishNewsCommand read(BinaryCodec.Input in) {
+                        return new PublishNewsCommand(in.readString(), in.readString());
+                    }
+                })
+                .register(FETCH_NEWS, FetchNewsCommand.class, new BinaryCodec.Type<FetchNewsCommand>() {
+                    @Override
+                    public void write(FetchNewsCommand cmd, BinaryCodec.Output out) {
+                        out.writeString(cmd.getChannel());
+                        out.writeLong(cmd.getSince());
+                    }
+
+                    @Override
+                    public FetchNewsCommand read(BinaryCodec.Input in) {
+                        return new FetchNewsCommand(in.readString(), in.readLong());
+                    }
+                })
+                .register(NEWS_PAGE, NewsPage.class, new BinaryCodec.Type<NewsPage>() {
+                    @Override
+                    public void write(NewsPage page, BinaryCodec.Output out) {
+                        out.writeLong(page.getFrom());
+                        out.writeLong(page.getNext());
+                        out.writeVarInt(page.getItems().size());
+                        for (String item : page.getItems()) {
+                            out.writeString(item);
+                        }
+                    }
+
+                    @Override
+                    public NewsPage read(BinaryCodec.Input in) {
+                        long from = in.readLong();
+                        long next = in.readLong();
+                        int size = in.readVarInt();
+                        ArrayList<String> items = new ArrayList<>(size);
+                        for (int i = 0; i < size; i++) {
+                            items.add(in.readString());
+                        }
+                        return new NewsPage(from, next, items);
+                    }
+                });
+    }
+}
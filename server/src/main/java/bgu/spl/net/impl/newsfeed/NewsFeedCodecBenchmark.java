@@ -0,0 +1,78 @@
+package bgu.spl.net.impl.newsfeed;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.function.Supplier;
+
+import bgu.spl.net.api.MessageEncoderDecoder;
+import bgu.spl.net.impl.rci.BinaryEncoderDecoder;
+import bgu.spl.net.impl.rci.ObjectEncoderDecoder;
+
+/**
+ * Compares Java serialization ({@link ObjectEncoderDecoder}) with the binary
+ * codec ({@link BinaryEncoderDecoder}) on the news feed traffic: publish and
+ * fetch commands and their replies. Every message is encoded, then decoded
+ * byte by byte like the servers do.
+ *
+ * <pre>
+ * java bgu.spl.net.impl.newsfeed.NewsFeedCodecBenchmark [rounds]
+ * </pre>
+ */
+public class NewsFeedCodecBenchmark {
+
+    public static void main(String[] args) {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+
+        ArrayList<String> headlines = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            headlines.add("headline number " + i + ": new SPL assignment is out soon!!");
+        }
+        Serializable[] workload = {
+                new PublishNewsCommand("headlines", "THE CAKE IS A LIE!"),
+                "OK",
+                new PublishNewsCommand("jobs",
+                        "System Programmer, knowledge in C++, Java and Python required. call 0x134693F"),
+                "OK",
+                new FetchNewsCommand("headlines"),
+                headlines,
+        };
+
+        run("java serialization", ObjectEncoderDecoder::new, workload, rounds);
+        run("binary codec", () -> new BinaryEncoderDecoder(NewsFeedCodec.create()), workload, rounds);
+    }
+
+    private static void run(String name, Supplier<MessageEncoderDecoder<Serializable>> factory,
+            Serializable[] workload, int rounds) {
+        MessageEncoderDecoder<Serializable> encdec = factory.get();
+
+        long bytes = 0;
+        for (Serializable message : workload) {
+            bytes += encdec.encode(message).length;
+        }
+
+        roundTrips(encdec, workload, rounds / 10); // warm up
+        long start = System.nanoTime();
+        int decoded = roundTrips(encdec, workload, rounds);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%-20s %6.1f bytes per message, %,10.0f messages per second%n",
+                name, (double) bytes / workload.length, decoded / seconds);
+    }
+
+    private static int roundTrips(MessageEncoderDecoder<Serializable> encdec, Serializable[] workload, int rounds) {
+        int decoded = 0;
+        for (int round = 0; round < rounds; round++) {
+            for (Serializable message : workload) {
+                for (byte b : encdec.encode(message)) {
+                    if (encdec.decodeNextByte(b) != null) {
+                        decoded++;
+                    }
+                }
+            }
+        }
+        if (decoded != rounds * workload.length) {
+            throw new IllegalStateException("lost messages");
+        }
+        return decoded;
+    }
+}
@@ -1,6 +1,7 @@
 package bgu.spl.net.impl.newsfeed;
 
-import bgu.spl.net.impl.rci.ObjectEncoderDecoder;
+import bgu.spl.net.impl.rci.BinaryCodec;
+import bgu.spl.net.impl.rci.BinaryEncoderDecoder;
 import bgu.spl.net.impl.rci.RemoteCommandInvocationProtocol;
 import bgu.spl.net.srv.Server;
 
@@ -8,19 +9,20 @@ public class NewsFeedServerMain {
 
     public static void main(String[] args) {
         NewsFeed feed = new NewsFeed(); //one shared object
+        BinaryCodec codec = NewsFeedCodec.create();
 
         // you can use any server... 
         Server.threadPerClient(
                 7777, //port
                 () -> new RemoteCommandInvocationProtocol<>(feed), //protocol factory
-                ObjectEncoderDecoder::new //message encoder decoder factory
+                () -> new BinaryEncoderDecoder(codec) //message encoder decoder factory
         ).serve();
 
         // Server.reactor(
         //         Runtime.getRuntime().availableProcessors(),
         //         7777, //port
         //         () ->  new RemoteCommandInvocationProtocol<>(feed), //protocol factory
-        //         ObjectEncoderDecoder::new //message encoder decoder factory
+        //         () -> new BinaryEncoderDecoder(codec) //message encoder decoder factory
         // ).serve();
     }
 }
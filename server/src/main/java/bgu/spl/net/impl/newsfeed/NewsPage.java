@@ -0,0 +1,41 @@
+package bgu.spl.net.impl.newsfeed;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+/**
+ * The reply to a fetch from an offset: the items from offset {@link #getFrom()}
+ * (later than the requested one if older items were evicted) up to, not
+ * including, {@link #getNext()}, the offset to fetch from next time.
+ */
+public class NewsPage implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long from;
+    private final long next;
+    private final ArrayList<String> items;
+
+    public NewsPage(long from, long next, ArrayList<String> items) {
+        this.from = from;
+        this.next = next;
+        this.items = items;
+    }
+
+    public long getFrom() {
+        return from;
+    }
+
+    public long getNext() {
+        return next;
+    }
+
+    public ArrayList<String> getItems() {
+        return items;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + from + ", " + next + ") " + items;
+    }
+}
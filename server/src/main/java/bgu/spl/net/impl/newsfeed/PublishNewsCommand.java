@@ -13,6 +13,14 @@ public class PublishNewsCommand implements Command<NewsFeed> {
         this.news = news;
     }
  
+    public String getChannel() {
+        return channel;
+    }
+
+    public String getNews() {
+        return news;
+    }
+
     @Override
     public Serializable execute(NewsFeed feed) {
         feed.publish(channel, news);
@@ -0,0 +1,334 @@
+package bgu.spl.net.impl.rci;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Encodes values as a type tag followed by hand written fields, without the
+ * class descriptors Java serialization sends with every object.
+ *
+ * Strings, integers, longs, booleans, null and lists of such values have tags
+ * of their own; other classes are registered with a tag of at least
+ * {@link #FIRST_USER_TAG} and a {@link Type} that writes and reads their
+ * fields. Values of classes that are not registered are still sent, with
+ * Java serialization. Tags and lengths are written as varints.
+ *
+ * Both sides must register the same types with the same tags.
+ */
+public class BinaryCodec {
+
+    /**
+     * Writes and reads the fields of one registered class.
+     */
+    public interface Type<T> {
+        void write(T value, Output out);
+
+        T read(Input in);
+    }
+
+    private static final int NULL = 0;
+    private static final int STRING = 1;
+    private static final int INTEGER = 2;
+    private static final int LONG = 3;
+    private static final int BOOLEAN = 4;
+    private static final int LIST = 5;
+    private static final int SERIALIZED = 15;
+    public static final int FIRST_USER_TAG = 16;
+
+    private final ConcurrentHashMap<Class<?>, Registration<?>> byClass = new ConcurrentHashMap<>();
+    private volatile Registration<?>[] byTag = new Registration<?>[0];
+
+    /**
+     * @throws IllegalArgumentException if the tag or the class is already taken
+     */
+    public synchronized <T extends Serializable> BinaryCodec register(int tag, Class<T> type, Type<T> fields) {
+        if (tag < FIRST_USER_TAG) {
+            throw new IllegalArgumentException("tags below " + FIRST_USER_TAG + " are reserved");
+        }
+        if (tag < byTag.length && byTag[tag] != null || byClass.containsKey(type)) {
+            throw new IllegalArgumentException("tag " + tag + " or " + type.getName() + " already registered");
+        }
+        Registration<T> registration = new Registration<>(tag, fields);
+        Registration<?>[] tags = Arrays.copyOf(byTag, Math.max(byTag.length, tag + 1));
+        tags[tag] = registration;
+        byClass.put(type, registration);
+        byTag = tags;
+        return this;
+    }
+
+    public void write(Serializable value, Output out) {
+        if (value == null) {
+            out.writeVarInt(NULL);
+        } else if (value instanceof String) {
+            out.writeVarInt(STRING);
+            out.writeString((String) value);
+        } else if (value instanceof Integer) {
+            out.writeVarInt(INTEGER);
+            out.writeVarInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeVarInt(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Boolean) {
+            out.writeVarInt(BOOLEAN);
+            out.writeByte((Boolean) value ? 1 : 0);
+        } else if (value instanceof ArrayList) {
+            // ArrayList only, the list type Java serialization would give back
+            List<?> list = (List<?>) value;
+            out.writeVarInt(LIST);
+            out.writeVarInt(list.size());
+            for (Object element : list) {
+                write((Serializable) element, out);
+            }
+        } else {
+            writeRegistered(value, out);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> void writeRegistered(T value, Output out) {
+        Registration<T> registration = (Registration<T>) byClass.get(value.getClass());
+        if (registration == null) {
+            out.writeVarInt(SERIALIZED);
+            out.writeBytes(serialize((Serializable) value));
+            return;
+        }
+        out.writeVarInt(registration.tag);
+        registration.fields.write(value, out);
+    }
+
+    public Serializable read(Input in) {
+        int tag = in.readVarInt();
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return in.readString();
+            case INTEGER:
+                return in.readVarInt();
+            case LONG:
+                return in.readLong();
+            case BOOLEAN:
+                return in.readByte() != 0;
+            case LIST: {
+                int size = in.readVarInt();
+                ArrayList<Serializable> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(read(in));
+                }
+                return list;
+            }
+            case SERIALIZED:
+                return deserialize(in.readBytes());
+            default:
+                Registration<?>[] tags = byTag;
+                if (tag >= tags.length || tags[tag] == null) {
+                    throw new IllegalArgumentException("unknown type tag " + tag);
+                }
+                return (Serializable) tags[tag].fields.read(in);
+        }
+    }
+
+    private static byte[] serialize(Serializable value) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(value);
+            out.flush();
+            return bytes.toByteArray();
+        } catch (Exception ex) {
+            throw new IllegalArgumentException("cannot serialize object", ex);
+        }
+    }
+
+    private static Serializable deserialize(byte[] bytes) {
+        try {
+            return (Serializable) new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+        } catch (Exception ex) {
+            throw new IllegalArgumentException("cannot desrialize object", ex);
+        }
+    }
+
+    private static final class Registration<T> {
+        final int tag;
+        final Type<T> fields;
+
+        Registration(int tag, Type<T> fields) {
+            this.tag = tag;
+            this.fields = fields;
+        }
+    }
+
+    /* ================= Fields ================= */
+
+    /**
+     * A growable byte array the fields are written to.
+     */
+    public static class Output {
+        private byte[] bytes;
+        private int length = 0;
+
+        public Output(int capacity) {
+            bytes = new byte[Math.max(capacity, 16)];
+        }
+
+        public int length() {
+            return length;
+        }
+
+        public byte[] toByteArray() {
+            return Arrays.copyOf(bytes, length);
+        }
+
+        /**
+         * Overwrites 4 bytes already written, big endian.
+         */
+        public void setInt(int position, int value) {
+            bytes[position] = (byte) (value >>> 24);
+            bytes[position + 1] = (byte) (value >>> 16);
+            bytes[position + 2] = (byte) (value >>> 8);
+            bytes[position + 3] = (byte) value;
+        }
+
+        public void writeByte(int value) {
+            ensure(1);
+            bytes[length++] = (byte) value;
+        }
+
+        public void writeInt(int value) {
+            ensure(4);
+            setInt(length, value);
+            length += 4;
+        }
+
+        public void writeLong(long value) {
+            writeInt((int) (value >>> 32));
+            writeInt((int) value);
+        }
+
+        /**
+         * Writes 7 bits per byte, low bits first; small non negative values take one byte.
+         */
+        public void writeVarInt(int value) {
+            ensure(5);
+            while ((value & ~0x7f) != 0) {
+                bytes[length++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        public void writeBytes(byte[] value) {
+            writeVarInt(value.length);
+            ensure(value.length);
+            System.arraycopy(value, 0, bytes, length, value.length);
+            length += value.length;
+        }
+
+        public void writeString(String value) {
+            // ASCII text, the common case, is copied without an intermediate array
+            int chars = value.length();
+            boolean ascii = true;
+            for (int i = 0; i < chars && ascii; i++) {
+                ascii = value.charAt(i) < 0x80;
+            }
+            if (!ascii) {
+                writeBytes(value.getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            writeVarInt(chars);
+            ensure(chars);
+            for (int i = 0; i < chars; i++) {
+                bytes[length++] = (byte) value.charAt(i);
+            }
+        }
+
+        private void ensure(int more) {
+            if (length + more > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + more));
+            }
+        }
+    }
+
+    /**
+     * Reads fields from a byte array, in place.
+     */
+    public static class Input {
+        private final byte[] bytes;
+        private int position;
+        private final int end;
+
+        public Input(byte[] bytes, int offset, int length) {
+            this.bytes = bytes;
+            this.position = offset;
+            this.end = offset + length;
+        }
+
+        public int readByte() {
+            require(1);
+            return bytes[position++];
+        }
+
+        public int readInt() {
+            require(4);
+            int value = (bytes[position] & 0xff) << 24
+                    | (bytes[position + 1] & 0xff) << 16
+                    | (bytes[position + 2] & 0xff) << 8
+                    | (bytes[position + 3] & 0xff);
+            position += 4;
+            return value;
+        }
+
+        public long readLong() {
+            return ((long) readInt() << 32) | (readInt() & 0xffffffffL);
+        }
+
+        public int readVarInt() {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = readByte();
+                value |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("malformed varint");
+        }
+
+        public byte[] readBytes() {
+            int length = readLength();
+            byte[] value = Arrays.copyOfRange(bytes, position, position + length);
+            position += length;
+            return value;
+        }
+
+        public String readString() {
+            int length = readLength();
+            String value = new String(bytes, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        private int readLength() {
+            int length = readVarInt();
+            if (length < 0) {
+                throw new IllegalArgumentException("negative length");
+            }
+            require(length);
+            return length;
+        }
+
+        private void require(int count) {
+            if (end - position < count) {
+                throw new IllegalArgumentException("message truncated");
+            }
+        }
+    }
+}
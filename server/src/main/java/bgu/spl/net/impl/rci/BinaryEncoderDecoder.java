@@ -0,0 +1,67 @@
+package bgu.spl.net.impl.rci;
+
+import bgu.spl.net.api.MessageEncoderDecoder;
+import java.io.Serializable;
+
+/**
+ * Frames messages like {@link ObjectEncoderDecoder} (a 4 byte length, then the
+ * message), with the message written by a {@link BinaryCodec} instead of Java
+ * serialization. The frame buffer is kept between messages, so decoding
+ * allocates the decoded values only.
+ */
+public class BinaryEncoderDecoder implements MessageEncoderDecoder<Serializable> {
+
+    private static final int MAX_KEPT_BUFFER = 1 << 16; // larger buffers are not kept for the next message
+
+    private final BinaryCodec codec;
+    private byte[] frame = new byte[64];
+    private int length = -1; // -1 while reading the length
+    private int lengthBytes = 0;
+    private int index = 0;
+
+    public BinaryEncoderDecoder(BinaryCodec codec) {
+        this.codec = codec;
+    }
+
+    @Override
+    public Serializable decodeNextByte(byte nextByte) {
+        if (length < 0) { //still reading the length
+            index = (index << 8) | (nextByte & 0xff);
+            if (++lengthBytes == 4) {
+                length = index;
+                if (length < 0) {
+                    throw new IllegalArgumentException("negative message length");
+                }
+                if (length > frame.length || frame.length > MAX_KEPT_BUFFER && length <= MAX_KEPT_BUFFER) {
+                    frame = new byte[length];
+                }
+                index = 0;
+                lengthBytes = 0;
+                if (length == 0) {
+                    length = -1;
+                    throw new IllegalArgumentException("empty message");
+                }
+            }
+            return null;
+        }
+
+        frame[index] = nextByte;
+        if (++index == length) {
+            int messageLength = length;
+            length = -1;
+            index = 0;
+            return codec.read(new BinaryCodec.Input(frame, 0, messageLength));
+        }
+        return null;
+    }
+
+    // may be called by several threads at once, like any encode
+    @Override
+    public byte[] encode(Serializable message) {
+        BinaryCodec.Output output = new BinaryCodec.Output(128);
+        output.writeInt(0); //placeholder for the message size
+        codec.write(message, output);
+        output.setInt(0, output.length() - 4);
+        return output.toByteArray();
+    }
+}
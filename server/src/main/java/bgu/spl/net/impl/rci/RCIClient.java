@@ -1,5 +1,6 @@
 package bgu.spl.net.impl.rci;
 
+import bgu.spl.net.api.MessageEncoderDecoder;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.Closeable;
@@ -9,14 +10,18 @@ import java.net.Socket;
 
 public class RCIClient implements Closeable {
 
-    private final ObjectEncoderDecoder encdec;
+    private final MessageEncoderDecoder<Serializable> encdec;
     private final Socket sock;
     private final BufferedInputStream in;
     private final BufferedOutputStream out;
 
     public RCIClient(String host, int port) throws IOException {
+        this(host, port, new ObjectEncoderDecoder());
+    }
+
+    public RCIClient(String host, int port, MessageEncoderDecoder<Serializable> encdec) throws IOException {
         sock = new Socket(host, port);
-        encdec = new ObjectEncoderDecoder();
+        this.encdec = encdec;
         in = new BufferedInputStream(sock.getInputStream());
         out = new BufferedOutputStream(sock.getOutputStream());
     }
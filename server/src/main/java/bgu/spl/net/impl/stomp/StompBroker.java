@@ -0,0 +1,553 @@
+package bgu.spl.net.impl.stomp;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bgu.spl.net.impl.cluster.ClusterNode;
+import bgu.spl.net.srv.Connections;
+import bgu.spl.net.srv.LaneExecutor;
+
+/**
+ * Delivers published messages to the subscribers of a destination, locally and
+ * (when running in a cluster) on the other nodes that have subscribers for it.
+ *
+ * In channel-affine mode every destination is hashed to a lane, and all the
+ * work touching a destination (subscription changes and fan-out) runs on that
+ * lane: single threaded and in order, whoever the publishers are.
+ */
+public class StompBroker {
+
+    private static final AtomicInteger messageIdCounter = new AtomicInteger(0);
+
+    private final Connections<String> connections;
+    private final LaneExecutor lanes; // null when not channel-affine
+    private volatile ClusterNode cluster = null;
+    private volatile StompHotspots hotspots = null;
+    private volatile StompSessions sessions = null;
+    // fan-out to parallelThreshold subscribers or more runs in partitions on this pool
+    private volatile ForkJoinPool fanOutPool = null;
+    private volatile int parallelThreshold = Integer.MAX_VALUE;
+    private volatile int partitionSize = 1024;
+    // <username, <destination, subscriptionId>> restored from a snapshot, applied on the user's next login
+    private final ConcurrentHashMap<String, Map<String, Integer>> restoredSubscriptions = new ConcurrentHashMap<>();
+    // connections that negotiated compressed MESSAGE bodies, see StompCompression
+    private final Set<Integer> compressedSessions = ConcurrentHashMap.newKeySet();
+    // <connectionId, protocol> of the logged in connections, to end their sessions from outside
+    private final ConcurrentHashMap<Integer, StompMessagingProtocolImpl> protocols = new ConcurrentHashMap<>();
+    // <connectionId, <destination, options>> of the subscriptions with a selector or conflation
+    private final ConcurrentHashMap<Integer, Map<String, SubscriptionOptions>> subscriptionOptions =
+            new ConcurrentHashMap<>();
+
+    public StompBroker(Connections<String> connections) {
+        this(connections, null);
+    }
+
+    public StompBroker(Connections<String> connections, LaneExecutor lanes) {
+        this.connections = connections;
+        this.lanes = lanes;
+    }
+
+    /**
+     * Runs work touching the destination on its lane, or right away when not
+     * channel-affine.
+     */
+    public void executeFor(String destination, Runnable task) {
+        if (lanes == null) {
+            task.run();
+        } else {
+            lanes.execute(destination, task);
+        }
+    }
+
+    /**
+     * Runs the task once all the destination work submitted so far is done,
+     * fan-out of hot destinations included.
+     */
+    public void executeAfterAll(Runnable task) {
+        StompHotspots hotspots = this.hotspots;
+        Runnable afterFanOuts = hotspots == null ? task : () -> hotspots.afterAllFanOuts(task);
+        if (lanes == null) {
+            afterFanOuts.run();
+        } else {
+            lanes.executeAfterAll(afterFanOuts);
+        }
+    }
+
+    /**
+     * Runs the task once the messages published to the destination so far
+     * have been delivered to its local subscribers.
+     */
+    public void executeAfterDelivery(String destination, Runnable task) {
+        StompHotspots hotspots = this.hotspots;
+        if (hotspots == null) {
+            task.run();
+        } else {
+            hotspots.afterFanOut(destination, task);
+        }
+    }
+
+    public Connections<String> getConnections() {
+        return connections;
+    }
+
+    public void setCluster(ClusterNode cluster) {
+        this.cluster = cluster;
+    }
+
+    public ClusterNode getCluster() {
+        return cluster;
+    }
+
+    /**
+     * Delivers the messages of destinations with at least threshold local
+     * subscribers in parallel, in partitions of partitionSize subscribers.
+     *
+     * @param parallelism the number of fan-out threads
+     */
+    public void setParallelFanOut(int threshold, int partitionSize, int parallelism) {
+        ForkJoinPool previous = fanOutPool;
+        this.partitionSize = Math.max(partitionSize, 1);
+        this.parallelThreshold = threshold;
+        this.fanOutPool = new ForkJoinPool(parallelism);
+        if (previous != null) {
+            previous.shutdown();
+        }
+    }
+
+    public void setSessions(StompSessions sessions) {
+        this.sessions = sessions;
+    }
+
+    /**
+     * @return the resumable sessions, or null if resumption is disabled
+     */
+    public StompSessions getSessions() {
+        return sessions;
+    }
+
+    public void setHotspots(StompHotspots hotspots) {
+        this.hotspots = hotspots;
+    }
+
+    /**
+     * @return the hot destination detector, or null if not enabled
+     */
+    public StompHotspots getHotspots() {
+        return hotspots;
+    }
+
+    /* ================= Warm restart ================= */
+
+    public int getLastMessageId() {
+        return messageIdCounter.get();
+    }
+
+    /**
+     * Makes sure new message ids follow the ones handed out by a previous run.
+     */
+    public void restoreLastMessageId(int lastMessageId) {
+        messageIdCounter.accumulateAndGet(lastMessageId, Math::max);
+    }
+
+    /**
+     * Remembers the subscriptions a user had in a previous run, until it logs in again.
+     */
+    public void restoreSubscriptions(String username, Map<String, Integer> subscriptions) {
+        if (!subscriptions.isEmpty()) {
+            restoredSubscriptions.put(username, new HashMap<>(subscriptions));
+        }
+    }
+
+    /**
+     * @return the subscriptions restored for the user and not taken yet
+     */
+    public Map<String, Integer> getRestoredSubscriptions(String username) {
+        Map<String, Integer> subscriptions = restoredSubscriptions.get(username);
+        return subscriptions == null ? Collections.emptyMap() : subscriptions;
+    }
+
+    /**
+     * @return the subscriptions restored for the user, which are no longer kept
+     */
+    public Map<String, Integer> takeRestoredSubscriptions(String username) {
+        Map<String, Integer> subscriptions = restoredSubscriptions.remove(username);
+        return subscriptions == null ? Collections.emptyMap() : subscriptions;
+    }
+
+    /* ================= Delivery ================= */
+
+    /**
+     * Sets whether the connection gets its MESSAGE bodies compressed.
+     */
+    public void setCompression(int connectionId, boolean compressed) {
+        if (compressed) {
+            compressedSessions.add(connectionId);
+        } else {
+            compressedSessions.remove(connectionId);
+        }
+    }
+
+    /**
+     * Sets the delivery options of the connection's subscription to the
+     * destination.
+     *
+     * @param selector the selector, or null to get every message
+     * @param conflate whether a message with a conflation key replaces the
+     *                 unsent message with the same key (see ConnectionHandler)
+     */
+    public void setSubscriptionOptions(int connectionId, String destination, StompSelector selector,
+            boolean conflate) {
+        if (selector != null || conflate) {
+            subscriptionOptions.computeIfAbsent(connectionId, key -> new ConcurrentHashMap<>(4))
+                    .put(destination, new SubscriptionOptions(selector, conflate));
+        } else {
+            subscriptionOptions.computeIfPresent(connectionId, (key, bySubscription) -> {
+                bySubscription.remove(destination);
+                return bySubscription.isEmpty() ? null : bySubscription;
+            });
+        }
+    }
+
+    /**
+     * Forgets the delivery options of a closed connection.
+     */
+    /**
+     * Registers the protocol serving a logged in (or resumed) connection.
+     */
+    public void sessionStarted(int connectionId, StompMessagingProtocolImpl protocol) {
+        protocols.put(connectionId, protocol);
+    }
+
+    /**
+     * @return the protocol serving the connection, or null if it is not logged in
+     */
+    public StompMessagingProtocolImpl protocolOf(int connectionId) {
+        return protocols.get(connectionId);
+    }
+
+    public void sessionClosed(int connectionId) {
+        protocols.remove(connectionId);
+        compressedSessions.remove(connectionId);
+        subscriptionOptions.remove(connectionId);
+    }
+
+    private SubscriptionOptions optionsOf(int connectionId, String destination) {
+        Map<String, SubscriptionOptions> bySubscription = subscriptionOptions.get(connectionId);
+        return bySubscription == null ? SubscriptionOptions.NONE
+                : bySubscription.getOrDefault(destination, SubscriptionOptions.NONE);
+    }
+
+    /**
+     * Sends the body to every subscriber of the destination in the cluster.
+     */
+    public void publish(String destination, String body) {
+        publish(destination, body, null);
+    }
+
+    /**
+     * Same as {@link #publish(String, String)}, for a message that replaces the
+     * unsent message with the same conflation key and destination, for the
+     * subscriptions in conflation mode.
+     *
+     * @param conflationKey the key, or null if the message is not conflatable
+     */
+    public void publish(String destination, String body, String conflationKey) {
+        deliverLocal(destination, body, conflationKey);
+
+        ClusterNode cluster = this.cluster;
+        if (cluster != null) {
+            cluster.forward(destination, body, conflationKey);
+        }
+    }
+
+    /**
+     * Sends the bodies, in order, to every subscriber of the destination in
+     * the cluster. Every local subscriber gets all its MESSAGE frames in a
+     * single send.
+     */
+    public void publishAll(String destination, List<String> bodies) {
+        StompHotspots hotspots = this.hotspots;
+        if (hotspots == null) {
+            deliverAllLocal(destination, bodies);
+        } else {
+            hotspots.fanOut(destination, bodies.size(), () -> deliverAllLocal(destination, bodies));
+        }
+
+        ClusterNode cluster = this.cluster;
+        if (cluster != null) {
+            for (String body : bodies) {
+                cluster.forward(destination, body);
+            }
+        }
+    }
+
+    /**
+     * @return the number of local subscribers
+     */
+    private int deliverAllLocal(String destination, List<String> bodies) {
+        SubscriberList subscribers = new SubscriberList(connections.getSubscribers(destination));
+        // compressed once, for all the subscribers that want them
+        CompressedBodies compressedBodies = new CompressedBodies(bodies);
+        boolean selective = !subscriptionOptions.isEmpty();
+
+        forEachPartition(subscribers.size(), (from, to) -> {
+            Selection[] selections = null; // one per partition, they are not thread safe
+            if (selective) {
+                selections = new Selection[bodies.size()];
+                for (int i = 0; i < selections.length; i++) {
+                    selections[i] = new Selection(destination, bodies.get(i));
+                }
+            }
+
+            for (int s = from; s < to; s++) {
+                int subscriberId = subscribers.connectionIds[s];
+                int subscriptionId = subscribers.subscriptionIds[s];
+                boolean compressed = compressedSessions.contains(subscriberId);
+                StompSelector selector = selections == null ? null : optionsOf(subscriberId, destination).selector;
+
+                StringBuilder frames = new StringBuilder();
+                for (int i = 0; i < bodies.size(); i++) {
+                    if (selector != null && !selections[i].accepts(selector)) {
+                        continue;
+                    }
+                    String compressedBody = compressed ? compressedBodies.get(i) : null;
+                    appendMessage(frames, subscriptionId, destination,
+                            compressedBody != null ? compressedBody : bodies.get(i), compressedBody != null);
+                }
+
+                if (frames.length() > 0) {
+                    send(subscriberId, frames.toString(), null);
+                }
+            }
+        });
+        return subscribers.size();
+    }
+
+    /**
+     * Sends the body to the subscribers of the destination connected to this
+     * node only.
+     */
+    public void deliverLocal(String destination, String body) {
+        deliverLocal(destination, body, null);
+    }
+
+    /**
+     * Same as {@link #deliverLocal(String, String)}, see
+     * {@link #publish(String, String, String)} for the conflation key.
+     */
+    public void deliverLocal(String destination, String body, String conflationKey) {
+        StompHotspots hotspots = this.hotspots;
+        if (hotspots == null) {
+            fanOut(destination, body, conflationKey);
+        } else {
+            hotspots.fanOut(destination, 1, () -> fanOut(destination, body, conflationKey));
+        }
+    }
+
+    /**
+     * @return the number of local subscribers
+     */
+    private int fanOut(String destination, String body, String conflationKey) {
+        SubscriberList subscribers = new SubscriberList(connections.getSubscribers(destination));
+        // compressed once, for all the subscribers that want it
+        CompressedBodies compressedBody = new CompressedBodies(Collections.singletonList(body));
+        boolean selective = !subscriptionOptions.isEmpty();
+        // keys are per destination
+        String destinationKey = conflationKey == null ? null : destination + '\0' + conflationKey;
+
+        forEachPartition(subscribers.size(), (from, to) -> {
+            // one per partition, it is not thread safe
+            Selection selection = selective ? new Selection(destination, body) : null;
+
+            for (int s = from; s < to; s++) {
+                int subscriberId = subscribers.connectionIds[s];
+                int subscriptionId = subscribers.subscriptionIds[s];
+                SubscriptionOptions options = selection == null ? SubscriptionOptions.NONE
+                        : optionsOf(subscriberId, destination);
+
+                if (selection != null && !selection.accepts(options.selector)) {
+                    continue;
+                }
+
+                String compressed = compressedSessions.contains(subscriberId) ? compressedBody.get(0) : null;
+
+                StringBuilder messageFrame = new StringBuilder();
+                appendMessage(messageFrame, subscriptionId, destination, compressed != null ? compressed : body,
+                        compressed != null);
+
+                send(subscriberId, messageFrame.toString(), options.conflate ? destinationKey : null);
+            }
+        });
+        return subscribers.size();
+    }
+
+    /**
+     * Runs the delivery to the subscribers [0, count): on the calling thread,
+     * or, from parallelThreshold subscribers on, split in partitions of
+     * partitionSize subscribers delivered in parallel. Returns once every
+     * partition is done, so every subscriber still gets the messages of a
+     * publisher in order.
+     */
+    private void forEachPartition(int count, Partition partition) {
+        ForkJoinPool pool = fanOutPool;
+        if (pool == null || count < parallelThreshold) {
+            partition.deliver(0, count);
+        } else {
+            pool.invoke(new PartitionTask(partition, 0, count, partitionSize));
+        }
+    }
+
+    private void appendMessage(StringBuilder frame, int subscriptionId, String destination,
+            String body, boolean compressed) {
+        int messageId = messageIdCounter.incrementAndGet();
+        frame.append("MESSAGE\n")
+                .append("subscription:").append(subscriptionId).append("\n")
+                .append("destination:").append(destination).append("\n")
+                .append("message-id:").append(messageId).append("\n");
+        if (compressed) {
+            frame.append("content-encoding:").append(StompCompression.ENCODING).append("\n");
+        }
+        frame.append("\n")
+                .append(body)
+                .append("\0");
+    }
+
+    private void send(int connectionId, String frames, String conflationKey) {
+        if (!connections.send(connectionId, frames, conflationKey)) {
+            sessionClosed(connectionId); // closed without a DISCONNECT
+            return;
+        }
+        StompHotspots hotspots = this.hotspots;
+        if (hotspots != null) {
+            hotspots.framesSent(connectionId, frames.length());
+        }
+    }
+
+    // delivers to the subscribers [from, to) of a SubscriberList
+    private interface Partition {
+        void deliver(int from, int to);
+    }
+
+    private static final class PartitionTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Partition partition;
+        private final int from;
+        private final int to;
+        private final int partitionSize;
+
+        PartitionTask(Partition partition, int from, int to, int partitionSize) {
+            this.partition = partition;
+            this.from = from;
+            this.to = to;
+            this.partitionSize = partitionSize;
+        }
+
+        @Override
+        protected void compute() {
+            int partitions = (to - from + partitionSize - 1) / partitionSize;
+            if (partitions <= 1) {
+                partition.deliver(from, to);
+                return;
+            }
+            // split on a partition boundary, so the partitions are the same whatever the splits
+            int middle = from + partitions / 2 * partitionSize;
+            invokeAll(new PartitionTask(partition, from, middle, partitionSize),
+                    new PartitionTask(partition, middle, to, partitionSize));
+        }
+    }
+
+    // a snapshot of the subscribers of a destination, indexed for partitioning
+    private static final class SubscriberList {
+        final int[] connectionIds;
+        final int[] subscriptionIds;
+
+        SubscriberList(Map<Integer, Integer> subscribers) {
+            connectionIds = new int[subscribers.size()];
+            subscriptionIds = new int[subscribers.size()];
+            int i = 0;
+            for (Map.Entry<Integer, Integer> entry : subscribers.entrySet()) {
+                connectionIds[i] = entry.getKey();
+                subscriptionIds[i] = entry.getValue();
+                i++;
+            }
+        }
+
+        int size() {
+            return connectionIds.length;
+        }
+    }
+
+    // the compressed bodies, compressed on first use, or null for the bodies not worth it
+    private static final class CompressedBodies {
+        private final List<String> bodies;
+        private String[] compressed = null;
+
+        CompressedBodies(List<String> bodies) {
+            this.bodies = bodies;
+        }
+
+        synchronized String get(int index) {
+            if (compressed == null) {
+                compressed = new String[bodies.size()];
+                for (int i = 0; i < compressed.length; i++) {
+                    String body = bodies.get(i);
+                    compressed[i] = StompCompression.shouldCompress(body) ? StompCompression.compress(body) : null;
+                }
+            }
+            return compressed[index];
+        }
+    }
+
+    private static final class SubscriptionOptions {
+        static final SubscriptionOptions NONE = new SubscriptionOptions(null, false);
+
+        final StompSelector selector; // null if every message is sent
+        final boolean conflate;
+
+        SubscriptionOptions(StompSelector selector, boolean conflate) {
+            this.selector = selector;
+            this.conflate = conflate;
+        }
+    }
+
+    /**
+     * The selectors matched against one message: the message fields are
+     * parsed only if a subscriber has a selector, and each distinct selector
+     * is matched once.
+     */
+    private static final class Selection {
+        private final String destination;
+        private final String body;
+        private Map<String, String> fields = null;
+        private final Map<StompSelector, Boolean> results = new IdentityHashMap<>();
+
+        Selection(String destination, String body) {
+            this.destination = destination;
+            this.body = body;
+        }
+
+        boolean accepts(StompSelector selector) {
+            if (selector == null) {
+                return true;
+            }
+            Boolean accepted = results.get(selector);
+            if (accepted == null) {
+                if (fields == null) {
+                    fields = StompSelector.fieldsOf(destination, body);
+                }
+                accepted = selector.accepts(fields);
+                results.put(selector, accepted);
+            }
+            return accepted;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package bgu.spl.net.impl.stomp;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of MESSAGE bodies for the clients that ask for it.
+ *
+ * A client sends "accept-encoding:deflate-dict-base64" in its CONNECT frame,
+ * and the server answers with "encoding:deflate-dict-base64" in CONNECTED.
+ * From then on, MESSAGE bodies of at least -Dstomp.compression.minBytes bytes
+ * (256 by default) are sent with a "content-encoding:deflate-dict-base64"
+ * header, and their body is the zlib
+ * stream of the UTF-8 text, compressed with {@link #DICTIONARY} as preset
+ * dictionary, in base64: frames end with a NUL byte and are decoded as text,
+ * so they cannot carry raw compressed bytes.
+ */
+public final class StompCompression {
+
+    // not plain "deflate": a client decoding that would miss the base64 and the dictionary
+    public static final String ENCODING = "deflate-dict-base64";
+
+    /**
+     * The words game reports are made of (see the client's report command),
+     * the most frequent last, where deflate finds them closest.
+     */
+    public static final byte[] DICTIONARY = (
+            "halftime extra time penalty shootout offside VAR yellow card red card substitution "
+            + "corner free kick header save shot on target possession foul injury "
+            + "kickoff goal!!!! Another goal!!!! GOOOAAALLL!!! final whistle "
+            + "The game has started! the ball into the net, "
+            + "active:true\nactive:false\nbefore halftime:true\nbefore halftime:false\n"
+            + "goals:1\ngoals:2\ngoals:3\npossession:50%\n"
+            + "file: \nuser: \nteam a: \nteam b: \nevent name: \ntime: \n"
+            + "general game updates:\nteam a updates:\nteam b updates:\ndescription:\n")
+            .getBytes(StandardCharsets.UTF_8);
+
+    private static final int MIN_BYTES = Integer.getInteger("stomp.compression.minBytes", 256);
+
+    // deflaters are costly to create, every thread keeps one
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(
+            () -> new Deflater(Deflater.DEFAULT_COMPRESSION));
+
+    private StompCompression() {
+    }
+
+    /**
+     * @return whether the body is worth compressing
+     */
+    public static boolean shouldCompress(String body) {
+        return body.length() >= MIN_BYTES;
+    }
+
+    /**
+     * @return the body compressed and in base64, as sent in MESSAGE frames
+     */
+    public static String compress(String body) {
+        byte[] input = body.getBytes(StandardCharsets.UTF_8);
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(input);
+        deflater.finish();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 2 + 16);
+        byte[] chunk = new byte[1024];
+        while (!deflater.finished()) {
+            int len = deflater.deflate(chunk);
+            out.write(chunk, 0, len);
+        }
+        return Base64.getEncoder().encodeToString(out.toByteArray());
+    }
+
+    /**
+     * The reverse of {@link #compress(String)}, as a client does it.
+     *
+     * @throws IllegalArgumentException if the body is not a compressed body
+     */
+    public static String decompress(String body) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(Base64.getDecoder().decode(body));
+            ByteArrayOutputStream out = new ByteArrayOutputStream(body.length() * 2);
+            byte[] chunk = new byte[1024];
+            while (!inflater.finished()) {
+                int len = inflater.inflate(chunk);
+                if (len == 0) {
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary(DICTIONARY);
+                    } else if (inflater.needsInput()) {
+                        throw new IllegalArgumentException("truncated compressed body");
+                    }
+                }
+                out.write(chunk, 0, len);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } catch (DataFormatException ex) {
+            throw new IllegalArgumentException("not a compressed body", ex);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -5,8 +5,16 @@ import bgu.spl.net.api.MessageEncoderDecoder;
 
 public class StompEncoderDecoder implements MessageEncoderDecoder<String> {
 
-    private byte[] bytes = new byte[1 << 10]; // Start with 1k
+    private static final byte[] NO_FRAME = new byte[0];
+    private static final int MIN_BUFFER_SIZE = 1 << 7; // 128b
+    private static final int MAX_BUFFER_HINT = 1 << 13; // 8k
+
+    // Allocated when a frame starts and dropped once it is decoded, so that
+    // idle connections hold no buffer. The next frame starts with the size
+    // the last one needed.
+    private byte[] bytes = NO_FRAME;
     private int len = 0;
+    private int sizeHint = MIN_BUFFER_SIZE;
 
     @Override
     public String decodeNextByte(byte nextByte) {
@@ -14,13 +22,17 @@ public class StompEncoderDecoder implements MessageEncoderDecoder<String> {
         // End of STOMP frame
         if (nextByte == '\u0000') {
             String message = new String(bytes, 0, len);
+            if (len > 0) {
+                sizeHint = Math.max(MIN_BUFFER_SIZE, Math.min(bytes.length, MAX_BUFFER_HINT));
+            }
+            bytes = NO_FRAME;
             len = 0;
             return message;
         }
 
         // Expand buffer if needed
         if (len >= bytes.length) {
-            bytes = Arrays.copyOf(bytes, len * 2);
+            bytes = Arrays.copyOf(bytes, Math.max(sizeHint, len * 2));
         }
 
         // Store next byte
@@ -35,6 +47,18 @@ public class StompEncoderDecoder implements MessageEncoderDecoder<String> {
         // STOMP frames must end with '\0'
         return (message + "\u0000").getBytes();
     }
+
+    @Override
+    public boolean isControl(String message) {
+        int start = 0;
+        while (start < message.length() && (message.charAt(start) == '\n' || message.charAt(start) == '\r')) {
+            start++; // heart-beats
+        }
+        return message.startsWith("CONNECT", start)
+                || message.startsWith("SUBSCRIBE", start)
+                || message.startsWith("UNSUBSCRIBE", start)
+                || message.startsWith("DISCONNECT", start);
+    }
 }
 
 
@@ -0,0 +1,84 @@
+package bgu.spl.net.impl.stomp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import bgu.spl.net.srv.ConnectionsImpl;
+import bgu.spl.net.srv.NonBlockingConnectionHandler;
+
+/**
+ * Measures the heap retained by the state the reactor keeps per STOMP
+ * connection: the protocol, the encoder/decoder (after decoding a CONNECT
+ * frame), the connection handler and its entries in {@link ConnectionsImpl},
+ * first for idle connections and then for each subscription added to them.
+ * No sockets are opened.
+ *
+ * <pre>
+ * java -Xmx2g bgu.spl.net.impl.stomp.StompFootprintBenchmark [connections] [subscriptions per connection]
+ * </pre>
+ */
+public class StompFootprintBenchmark {
+
+    private static final byte[] CONNECT_FRAME =
+            "CONNECT\naccept-version:1.2\nhost:stomp.cs.bgu.ac.il\nlogin:fan\npasscode:films\n\n\0".getBytes();
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int subscriptions = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+
+        ConnectionsImpl<String> connections = new ConnectionsImpl<>();
+        StompBroker broker = new StompBroker(connections);
+        List<Object> handlers = new ArrayList<>(count); // retained like the selector keys do
+
+        int[] ids = new int[count];
+
+        long base = usedHeap();
+
+        for (int i = 0; i < count; i++) {
+            int id = ids[i] = connections.reserveId();
+            StompEncoderDecoder encdec = new StompEncoderDecoder();
+            for (byte b : CONNECT_FRAME) {
+                encdec.decodeNextByte(b);
+            }
+            StompMessagingProtocolImpl protocol = new StompMessagingProtocolImpl(broker);
+            NonBlockingConnectionHandler<String> handler =
+                    new NonBlockingConnectionHandler<>(encdec, protocol, null, null);
+            connections.connect(id, handler);
+            protocol.start(id, connections);
+            handlers.add(handler);
+        }
+        long idle = usedHeap();
+
+        for (int sub = 0; sub < subscriptions; sub++) {
+            for (int i = 0; i < count; i++) {
+                connections.subscribe(ids[i], "/game_" + (i + sub) % 64, sub);
+            }
+        }
+        long subscribed = usedHeap();
+
+        System.out.printf("%d connections%n", count);
+        System.out.printf("idle:         %6d bytes per connection%n", (idle - base) / count);
+        System.out.printf("subscription: %6d bytes per connection and subscription%n",
+                (subscribed - idle) / ((long) count * Math.max(subscriptions, 1)));
+
+        // keep everything reachable until measured
+        if (handlers.size() != count || connections.getSubscribers("/game_0").isEmpty() == (subscriptions > 0)) {
+            System.out.println("unexpected state");
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // collect until the heap stops shrinking
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            long now = runtime.totalMemory() - runtime.freeMemory();
+            if (now >= used) {
+                break;
+            }
+            used = now;
+        }
+        return used;
+    }
+}
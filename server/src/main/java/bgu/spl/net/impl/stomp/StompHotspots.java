@@ -0,0 +1,366 @@
+package bgu.spl.net.impl.stomp;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+import bgu.spl.net.srv.LaneExecutor;
+import bgu.spl.net.srv.Log;
+
+/**
+ * Finds the hot destinations and the heavy connections, and moves the fan-out
+ * of hot destinations off the threads serving the publishers.
+ *
+ * For every destination it tracks the subscriber count, the publish rate and
+ * the time spent on fan-out; a destination crossing one of the thresholds is
+ * hot, and its fan-out runs on dedicated lanes (one lane per destination, so
+ * messages keep their order) until all three are back under half their
+ * threshold. For every connection it tracks the time spent processing its
+ * frames and the bytes it sent and received.
+ *
+ * The figures are sampled every few seconds; the top destinations and
+ * connections of the last sample are printed periodically and given by
+ * {@link #report()}.
+ *
+ * Enabled with -Dstomp.hotspots.lanes=&lt;number of fan-out lanes&gt;, and
+ * tuned with (defaults in parentheses):
+ * <pre>
+ * -Dstomp.hotspots.subscribers   subscriber count of a hot destination (500)
+ * -Dstomp.hotspots.publishRate   messages per second of a hot destination (50)
+ * -Dstomp.hotspots.fanOutMillis  fan-out milliseconds per second of a hot destination (200)
+ * -Dstomp.hotspots.intervalSeconds  sampling period (5)
+ * -Dstomp.hotspots.reportSeconds    report period, 0 for none (60)
+ * -Dstomp.hotspots.top              destinations and connections in a report (10)
+ * </pre>
+ */
+public class StompHotspots {
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private static final Log.Site SAMPLE_FAILED = Log.site("hotspots: sample failed");
+    private static final Log.Site TURNED_HOT = Log.site("hot destination", 0);
+    private static final Log.Site TURNED_NORMAL = Log.site("destination back to normal", 0);
+    private static final boolean threadCpuTime = threads.isCurrentThreadCpuTimeSupported();
+
+    private final LaneExecutor fanOutLanes;
+    private final int hotSubscribers;
+    private final double hotPublishRate;
+    private final double hotFanOutMillis;
+    private final ConcurrentHashMap<String, DestinationStats> destinations = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, ConnectionStats> connectionStats = new ConcurrentHashMap<>();
+
+    private long lastSampleNanos = System.nanoTime();
+    // the last sample, busiest first
+    private volatile List<DestinationSample> destinationSamples = Collections.emptyList();
+    private volatile List<ConnectionSample> connectionSamples = Collections.emptyList();
+    private int top = 10;
+
+    public StompHotspots(int lanes, int hotSubscribers, double hotPublishRate, double hotFanOutMillis) {
+        this.fanOutLanes = new LaneExecutor(lanes, "fan-out");
+        this.hotSubscribers = hotSubscribers;
+        this.hotPublishRate = hotPublishRate;
+        this.hotFanOutMillis = hotFanOutMillis;
+    }
+
+    /**
+     * @return the detector configured by the stomp.hotspots system
+     *         properties, or null if stomp.hotspots.lanes is not set
+     */
+    public static StompHotspots fromSystemProperties() {
+        int lanes = Integer.getInteger("stomp.hotspots.lanes", 0);
+        if (lanes <= 0) {
+            return null;
+        }
+        StompHotspots hotspots = new StompHotspots(lanes,
+                Integer.getInteger("stomp.hotspots.subscribers", 500),
+                doubleProperty("stomp.hotspots.publishRate", 50),
+                doubleProperty("stomp.hotspots.fanOutMillis", 200));
+        hotspots.top = Integer.getInteger("stomp.hotspots.top", 10);
+        return hotspots;
+    }
+
+    private static double doubleProperty(String name, double defaultValue) {
+        String value = System.getProperty(name);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    /**
+     * Samples the figures periodically, and prints a report every
+     * reportSeconds (never if 0).
+     */
+    public void start(long intervalSeconds, long reportSeconds) {
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "stomp-hotspots");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleWithFixedDelay(this::sampleQuietly, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        if (reportSeconds > 0) {
+            timer.scheduleWithFixedDelay(() -> System.out.print(report()), reportSeconds, reportSeconds,
+                    TimeUnit.SECONDS);
+        }
+    }
+
+    /* ================= Fan-out ================= */
+
+    /**
+     * Runs the fan-out of messages published to the destination: right away,
+     * or on the destination's fan-out lane when the destination is hot.
+     *
+     * A fan-out also goes to the lane while earlier ones are still queued
+     * there, so the messages of a publisher keep their order when the
+     * destination turns hot or cools down.
+     *
+     * @param messages the number of messages delivered
+     * @param delivery delivers the messages, and returns the number of
+     *                 subscribers of the destination
+     */
+    public void fanOut(String destination, int messages, IntSupplier delivery) {
+        DestinationStats stats = destinations.computeIfAbsent(destination, key -> new DestinationStats());
+        stats.publishes.addAndGet(messages);
+
+        if (stats.hot || stats.queued.get() > 0) {
+            stats.queued.incrementAndGet();
+            fanOutLanes.execute(destination, () -> {
+                try {
+                    timedFanOut(stats, delivery);
+                } finally {
+                    stats.queued.decrementAndGet();
+                }
+            });
+        } else {
+            timedFanOut(stats, delivery);
+        }
+    }
+
+    private static void timedFanOut(DestinationStats stats, IntSupplier delivery) {
+        long start = System.nanoTime();
+        stats.subscribers = delivery.getAsInt();
+        stats.fanOutNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    /**
+     * Runs the task once the fan-outs of the destination submitted so far are
+     * done.
+     */
+    public void afterFanOut(String destination, Runnable task) {
+        DestinationStats stats = destinations.get(destination);
+        if (stats != null && stats.queued.get() > 0) {
+            fanOutLanes.execute(destination, task);
+        } else {
+            task.run();
+        }
+    }
+
+    /**
+     * Runs the task once every fan-out submitted so far is done.
+     */
+    public void afterAllFanOuts(Runnable task) {
+        fanOutLanes.executeAfterAll(task);
+    }
+
+    /* ================= Connections ================= */
+
+    /**
+     * @return the current time to measure processing time with: the thread's
+     *         CPU time where supported, the wall clock time otherwise
+     */
+    public static long cpuTime() {
+        return threadCpuTime ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    /**
+     * Counts a frame the connection sent to the server.
+     *
+     * @param cpuStart the {@link #cpuTime()} when its processing started
+     */
+    public void frameProcessed(int connectionId, int length, long cpuStart) {
+        ConnectionStats stats = connectionStats.computeIfAbsent(connectionId, key -> new ConnectionStats());
+        stats.cpuNanos.addAndGet(cpuTime() - cpuStart);
+        stats.bytesIn.addAndGet(length);
+    }
+
+    /**
+     * Counts frames sent to the connection.
+     */
+    public void framesSent(int connectionId, int length) {
+        ConnectionStats stats = connectionStats.get(connectionId);
+        if (stats == null) {
+            stats = connectionStats.computeIfAbsent(connectionId, key -> new ConnectionStats());
+        }
+        stats.bytesOut.addAndGet(length);
+    }
+
+    /* ================= Sampling ================= */
+
+    private void sampleQuietly() {
+        try {
+            sample();
+        } catch (RuntimeException ex) {
+            SAMPLE_FAILED.error(ex);
+        }
+    }
+
+    /**
+     * Takes the figures since the last sample, and turns destinations hot or
+     * back to normal. Figures of idle destinations and connections are
+     * dropped.
+     */
+    public synchronized void sample() {
+        long now = System.nanoTime();
+        double seconds = Math.max(now - lastSampleNanos, 1) / 1e9;
+        lastSampleNanos = now;
+
+        List<DestinationSample> destinationList = new ArrayList<>();
+        for (Map.Entry<String, DestinationStats> entry : destinations.entrySet()) {
+            String destination = entry.getKey();
+            DestinationStats stats = entry.getValue();
+            long publishes = stats.publishes.getAndSet(0);
+            double fanOutMillis = stats.fanOutNanos.getAndSet(0) / 1e6 / seconds;
+            double publishRate = publishes / seconds;
+            int subscribers = stats.subscribers;
+
+            if (!stats.hot && (subscribers >= hotSubscribers || publishRate >= hotPublishRate
+                    || fanOutMillis >= hotFanOutMillis)) {
+                stats.hot = true;
+                TURNED_HOT.info(String.format("%s, %d subscribers, %.1f messages/s, fan-out %.1f ms/s",
+                        destination, subscribers, publishRate, fanOutMillis));
+            } else if (stats.hot && subscribers < hotSubscribers / 2 && publishRate < hotPublishRate / 2
+                    && fanOutMillis < hotFanOutMillis / 2) {
+                stats.hot = false;
+                TURNED_NORMAL.info(destination);
+            }
+
+            if (publishes == 0 && !stats.hot && stats.queued.get() == 0) {
+                // only the sampler turns a destination hot, so a publisher
+                // still holding the removed stats delivers right away
+                destinations.remove(destination, stats);
+            } else {
+                destinationList.add(new DestinationSample(destination, stats.hot, subscribers, publishRate,
+                        fanOutMillis));
+            }
+        }
+        destinationList.sort(Comparator.comparingDouble((DestinationSample s) -> s.fanOutMillis)
+                .thenComparingInt(s -> s.subscribers).reversed());
+
+        List<ConnectionSample> connectionList = new ArrayList<>();
+        for (Map.Entry<Integer, ConnectionStats> entry : connectionStats.entrySet()) {
+            ConnectionStats stats = entry.getValue();
+            long cpuNanos = stats.cpuNanos.getAndSet(0);
+            long bytesIn = stats.bytesIn.getAndSet(0);
+            long bytesOut = stats.bytesOut.getAndSet(0);
+            if (cpuNanos == 0 && bytesIn == 0 && bytesOut == 0) {
+                connectionStats.remove(entry.getKey(), stats); // idle or closed
+            } else {
+                connectionList.add(new ConnectionSample(entry.getKey(), cpuNanos / 1e6 / seconds,
+                        bytesIn / seconds, bytesOut / seconds));
+            }
+        }
+        connectionList.sort(Comparator.comparingDouble((ConnectionSample s) -> s.cpuMillis)
+                .thenComparingDouble(s -> s.bytesOut).reversed());
+
+        destinationSamples = destinationList;
+        connectionSamples = connectionList;
+    }
+
+    /**
+     * @return whether the fan-out of the destination runs on a fan-out lane
+     */
+    public boolean isHot(String destination) {
+        DestinationStats stats = destinations.get(destination);
+        return stats != null && stats.hot;
+    }
+
+    /**
+     * @return the top destinations and connections of the last sample
+     */
+    public String report() {
+        List<DestinationSample> destinationList = destinationSamples;
+        List<ConnectionSample> connectionList = connectionSamples;
+
+        StringBuilder report = new StringBuilder();
+        report.append("HOTSPOTS - Generated at: ").append(java.time.LocalDateTime.now()).append('\n');
+
+        report.append("Destinations, by fan-out time:\n");
+        for (DestinationSample sample : destinationList.subList(0, Math.min(top, destinationList.size()))) {
+            report.append(String.format("   %-30s %-4s %8d subscribers %10.1f messages/s %10.1f fan-out ms/s%n",
+                    sample.destination, sample.hot ? "HOT" : "", sample.subscribers, sample.publishRate,
+                    sample.fanOutMillis));
+        }
+
+        report.append("Connections, by processing time:\n");
+        appendConnections(report, connectionList);
+
+        List<ConnectionSample> bySent = new ArrayList<>(connectionList);
+        bySent.sort(Comparator.comparingDouble((ConnectionSample s) -> s.bytesOut).reversed());
+        report.append("Connections, by bytes sent to them:\n");
+        appendConnections(report, bySent);
+        return report.toString();
+    }
+
+    private void appendConnections(StringBuilder report, List<ConnectionSample> connectionList) {
+        for (ConnectionSample sample : connectionList.subList(0, Math.min(top, connectionList.size()))) {
+            report.append(String.format("   connection %-10d %10.1f cpu ms/s %12.0f bytes/s in %12.0f bytes/s out%n",
+                    sample.connectionId, sample.cpuMillis, sample.bytesIn, sample.bytesOut));
+        }
+    }
+
+    public void shutdown() {
+        fanOutLanes.shutdown();
+    }
+
+    private static final class DestinationStats {
+        final AtomicLong publishes = new AtomicLong();
+        final AtomicLong fanOutNanos = new AtomicLong();
+        final AtomicInteger queued = new AtomicInteger(); // fan-outs submitted to the lane and not done
+        volatile int subscribers = 0;
+        volatile boolean hot = false; // set by the sampler only
+    }
+
+    private static final class ConnectionStats {
+        final AtomicLong cpuNanos = new AtomicLong();
+        final AtomicLong bytesIn = new AtomicLong();
+        final AtomicLong bytesOut = new AtomicLong();
+    }
+
+    private static final class DestinationSample {
+        final String destination;
+        final boolean hot;
+        final int subscribers;
+        final double publishRate;
+        final double fanOutMillis;
+
+        DestinationSample(String destination, boolean hot, int subscribers, double publishRate,
+                double fanOutMillis) {
+            this.destination = destination;
+            this.hot = hot;
+            this.subscribers = subscribers;
+            this.publishRate = publishRate;
+            this.fanOutMillis = fanOutMillis;
+        }
+    }
+
+    private static final class ConnectionSample {
+        final int connectionId;
+        final double cpuMillis;
+        final double bytesIn;
+        final double bytesOut;
+
+        ConnectionSample(int connectionId, double cpuMillis, double bytesIn, double bytesOut) {
+            this.connectionId = connectionId;
+            this.cpuMillis = cpuMillis;
+            this.bytesIn = bytesIn;
+            this.bytesOut = bytesOut;
+        }
+    }
+}
@@ -1,31 +1,70 @@
 package bgu.spl.net.impl.stomp;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 import bgu.spl.net.api.StompMessagingProtocol;
+import bgu.spl.net.srv.AdmissionControl;
 import bgu.spl.net.srv.Connections;
 import bgu.spl.net.impl.data.Database;
 import bgu.spl.net.impl.data.LoginStatus;
 
 public class StompMessagingProtocolImpl implements StompMessagingProtocol<String> {
+    // the retry hint of a login that cannot be decided now (e.g. a cluster node is unreachable)
+    private static final int LOGIN_RETRY_AFTER_SECONDS = 2;
+    // SENDs a transaction may buffer until its COMMIT, -Dstomp.transaction.maxSends
+    private static final int MAX_TRANSACTION_SENDS = Integer.getInteger("stomp.transaction.maxSends", 1000);
+
     private int connectionId;
-    private boolean shouldTerminate = false;
+    private volatile boolean shouldTerminate = false;
+    // an ERROR found on a destination lane is on its way to the connection:
+    // the lane work queued after it is dropped
+    private volatile boolean failed = false;
     private Connections<String> connections;
-    private static final AtomicInteger messageIdCounter = new AtomicInteger(0);
     private boolean connected = false;
     private final Database database = Database.getInstance();
     private String username = null;
+    private StompBroker broker;
+    private boolean compressed = false; // MESSAGE bodies, see StompCompression
+    private String sessionToken = null; // to resume the session on a new connection, see StompSessions
+    private boolean disconnecting = false;
+    // The maps below are created on first use: most connections never need
+    // some of them, and there may be a great many idle connections.
+    // <subscriptionId, destination>, to route UNSUBSCRIBE to its destination's lane
+    private Map<Integer, String> subscriptionDestinations = null;
+    // destinations subscribed to from a snapshot of a previous run, also read by lanes
+    private volatile Set<String> restoredDestinations = null;
+    // <transaction, <destination, bodies>> of the SENDs buffered until COMMIT
+    private Map<String, Map<String, List<String>>> transactions = null;
+
+    public StompMessagingProtocolImpl() {
+        this(null);
+    }
+
+    public StompMessagingProtocolImpl(StompBroker broker) {
+        this.broker = broker;
+    }
 
     @Override
     public void start(int connectionId, Connections<String> connections) {
         this.connectionId = connectionId;
         this.connections = connections;
+        if (broker == null) {
+            broker = new StompBroker(connections);
+        }
     }
 
     @Override
     public String process(String message) {
+        StompHotspots hotspots = broker.getHotspots();
+        long cpuStart = hotspots == null ? 0 : StompHotspots.cpuTime();
 
         String originalFrame = message;
         String[] lines = message.split("\n");
@@ -78,9 +117,25 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
                 handleDisconnect(headers);
                 break;
 
+            case "BEGIN":
+                handleBegin(headers, originalFrame);
+                break;
+
+            case "COMMIT":
+                handleCommit(headers, originalFrame);
+                break;
+
+            case "ABORT":
+                handleAbort(headers, originalFrame);
+                break;
+
             default:
                 sendError("Unknown command", originalFrame, "", headers);
         }
+
+        if (hotspots != null) {
+            hotspots.frameProcessed(connectionId, message.length(), cpuStart);
+        }
         return null;
     }
 
@@ -89,6 +144,32 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
         return shouldTerminate;
     }
 
+    /**
+     * Ends the session of a connection closed without a DISCONNECT, or parks
+     * it to be resumed (see StompSessions).
+     */
+    @Override
+    public void onClose() {
+        if (shouldTerminate || disconnecting) {
+            return; // ended by a DISCONNECT or an ERROR
+        }
+        shouldTerminate = true;
+
+        if (!connected) {
+            connections.disconnect(connectionId);
+            return;
+        }
+
+        // a session a lane found an error in is ended, not parked
+        StompSessions sessions = failed ? null : broker.getSessions();
+        if (sessions == null || !sessions.park(sessionToken, connectionId, username,
+                subscriptionDestinations, restoredDestinations, compressed)) {
+            database.logout(connectionId);
+            broker.sessionClosed(connectionId);
+            connections.disconnect(connectionId);
+        }
+    }
+
     /* ================= Handlers ================= */
 
     private void handleConnect(Map<String, String> headers, String originalFrame) {
@@ -106,8 +187,10 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
         String host = headers.get("host");
         String login = headers.get("login");
         String passcode = headers.get("passcode");
+        String resumedToken = headers.get("session");
 
-        if (acceptVersion == null || host == null || login == null || passcode == null) {
+        if (acceptVersion == null || host == null
+                || resumedToken == null && (login == null || passcode == null)) {
             sendError(
                     "malformed frame received",
                     originalFrame,
@@ -125,8 +208,42 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
             return;
         }
 
+        StompSessions sessions = broker.getSessions();
+
+        if (resumedToken != null) {
+            if (sessions != null && resumeSession(sessions, resumedToken)) {
+                return;
+            }
+            if (login == null || passcode == null) {
+                sendError(
+                        "session expired",
+                        originalFrame,
+                        "The session cannot be resumed, CONNECT with login and passcode instead.",
+                        headers);
+                return;
+            }
+        }
+
+        AdmissionControl admission = AdmissionControl.shared();
+        if (admission != null && !admission.admit()) {
+            // the server is overloaded, the sessions in place come first
+            sendError(
+                    "server overloaded",
+                    originalFrame,
+                    "The server does not take new sessions right now, try again later.",
+                    headers,
+                    "retry-after:" + admission.retryAfterSeconds());
+            return;
+        }
+
         LoginStatus status = database.login(connectionId, login, passcode);
 
+        if (status == LoginStatus.ALREADY_LOGGED_IN && sessions != null
+                && database.checkPassword(login, passcode) && sessions.endParked(login)) {
+            // the user's previous connection was lost, and the client logs in again instead of resuming
+            status = database.login(connectionId, login, passcode);
+        }
+
         switch (status) {
 
             case CLIENT_ALREADY_CONNECTED:
@@ -153,19 +270,30 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
                         headers);
                 return;
 
+            case LOGIN_UNAVAILABLE:
+                sendError(
+                        "Login unavailable",
+                        originalFrame,
+                        "User " + login + " cannot be logged in right now, try again later.",
+                        headers,
+                        "retry-after:" + LOGIN_RETRY_AFTER_SECONDS);
+                return;
+
             case ADDED_NEW_USER:
             case LOGGED_IN_SUCCESSFULLY:
                 // success
                 connected = true;
                 username = login;
+                restoreSubscriptions();
                 break;
         }
 
-        String response = "CONNECTED\n" +
-                "version:1.2\n\n" +
-                "\0";
+        compressed = acceptsCompression(headers.get("accept-encoding"));
+        broker.setCompression(connectionId, compressed);
+        sessionToken = sessions == null ? null : sessions.newToken();
+        broker.sessionStarted(connectionId, this);
 
-        connections.send(connectionId, response);
+        connections.send(connectionId, connectedFrame());
     }
 
     private void handleSend(Map<String, String> headers,
@@ -192,35 +320,58 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
             return;
         }
 
-        // check if client is subscribed
-        if (!connections.isSubscribed(connectionId, destination)) {
-            sendError(
-                    "not subscribed",
-                    originalFrame,
-                    "Client is not subscribed to destination " + destination,
-                    headers);
+        String transaction = headers.get("transaction");
+        if (transaction != null) {
+            Map<String, List<String>> sends = transactions == null ? null : transactions.get(transaction);
+            if (sends == null) {
+                sendError(
+                        "unknown transaction",
+                        originalFrame,
+                        "Transaction " + transaction + " was not begun.",
+                        headers);
+                return;
+            }
+            int buffered = 0;
+            for (List<String> bodies : sends.values()) {
+                buffered += bodies.size();
+            }
+            if (buffered >= MAX_TRANSACTION_SENDS) {
+                transactions.remove(transaction);
+                sendError(
+                        "transaction too large",
+                        originalFrame,
+                        "Transaction " + transaction + " exceeds " + MAX_TRANSACTION_SENDS + " SEND frames.",
+                        headers);
+                return;
+            }
+            // published (and audited) on COMMIT
+            sends.computeIfAbsent(destination, key -> new ArrayList<>()).add(body);
+            handleReceipt(headers);
             return;
         }
 
-        // broadcast message
-        Map<Integer, Integer> subscribers = connections.getSubscribers(destination);
+        broker.executeFor(destination, () -> {
+            if (shouldTerminate || failed) {
+                return;
+            }
 
-        for (Map.Entry<Integer, Integer> entry : subscribers.entrySet()) {
-            int subscriberId = entry.getKey();
-            int subscriptionId = entry.getValue();
+            // check if client is subscribed
+            if (!connections.isSubscribed(connectionId, destination)) {
+                reportError(
+                        "not subscribed",
+                        originalFrame,
+                        "Client is not subscribed to destination " + destination,
+                        headers);
+                return;
+            }
 
-            int messageId = messageIdCounter.incrementAndGet();
-            String messageFrame = "MESSAGE\n" +
-                    "subscription:" + subscriptionId + "\n" +
-                    "destination:" + destination + "\n" +
-                    "message-id:" + messageId + "\n\n" +
-                    body +
-                    "\0";
+            // broadcast message
+            broker.publish(destination, body, headers.get("conflation-key"));
 
-            connections.send(subscriberId, messageFrame);
-        }
+            broker.executeAfterDelivery(destination, () -> handleReceipt(headers));
 
-        handleReceipt(headers);
+            trackFileUploads(destination, Collections.singletonList(body));
+        });
     }
 
     private void handleSubscribe(Map<String, String> headers, String originalFrame) {
@@ -258,18 +409,53 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
             return;
         }
 
-        boolean ok = connections.subscribe(connectionId, destination, subId);
-
-        if (!ok) {
-            sendError(
-                    "subscription failed",
-                    originalFrame,
-                    "Client is already subscribed to destination " + destination,
-                    headers);
-            return;
+        StompSelector selector = null;
+        String selectorText = headers.get("selector");
+        if (selectorText != null) {
+            try {
+                selector = StompSelector.compile(selectorText);
+            } catch (IllegalArgumentException e) {
+                sendError(
+                        "malformed frame received",
+                        originalFrame,
+                        e.getMessage(),
+                        headers);
+                return;
+            }
         }
+        StompSelector subscriptionSelector = selector;
+        boolean conflate = "true".equals(headers.get("conflate"));
 
-        handleReceipt(headers);
+        subscriptionDestinations().putIfAbsent(subId, destination);
+
+        broker.executeFor(destination, () -> {
+            if (shouldTerminate || failed) {
+                return;
+            }
+
+            boolean ok = connections.subscribe(connectionId, destination, subId);
+
+            Set<String> restored = restoredDestinations;
+            if (!ok && restored != null && restored.remove(destination)) {
+                // the client subscribes again after a restart: its id replaces the restored one
+                Integer restoredId = connections.getSubscriptions(connectionId).get(destination);
+                ok = restoredId != null
+                        && connections.unsubscribe(connectionId, restoredId)
+                        && connections.subscribe(connectionId, destination, subId);
+            }
+
+            if (!ok) {
+                reportError(
+                        "subscription failed",
+                        originalFrame,
+                        "Client is already subscribed to destination " + destination,
+                        headers);
+                return;
+            }
+
+            broker.setSubscriptionOptions(connectionId, destination, subscriptionSelector, conflate);
+            handleReceipt(headers);
+        });
     }
 
     private void handleUnsubscribe(Map<String, String> headers, String originalFrame) {
@@ -306,13 +492,123 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
             return;
         }
 
-        boolean ok = connections.unsubscribe(connectionId, subId);
+        String destination = subscriptionDestinations == null ? null : subscriptionDestinations.remove(subId);
+
+        Runnable unsubscribe = () -> {
+            if (shouldTerminate || failed) {
+                return;
+            }
+
+            boolean ok = connections.unsubscribe(connectionId, subId);
+
+            if (!ok) {
+                reportError(
+                        "subscription not found",
+                        originalFrame,
+                        "No subscription with id " + subId + " exists.",
+                        headers);
+                return;
+            }
+
+            if (destination != null) {
+                broker.setSubscriptionOptions(connectionId, destination, null, false);
+            }
+            handleReceipt(headers);
+        };
 
-        if (!ok) {
+        if (destination != null) {
+            broker.executeFor(destination, unsubscribe);
+        } else {
+            unsubscribe.run();
+        }
+    }
+
+    private void handleBegin(Map<String, String> headers, String originalFrame) {
+
+        String transaction = validateTransaction("BEGIN", headers, originalFrame);
+        if (transaction == null) {
+            return;
+        }
+
+        if (transactions == null) {
+            transactions = new HashMap<>(4);
+        } else if (transactions.containsKey(transaction)) {
             sendError(
-                    "subscription not found",
+                    "transaction already begun",
                     originalFrame,
-                    "No subscription with id " + subId + " exists.",
+                    "Transaction " + transaction + " is already in progress.",
+                    headers);
+            return;
+        }
+
+        transactions.put(transaction, new LinkedHashMap<>());
+        handleReceipt(headers);
+    }
+
+    private void handleCommit(Map<String, String> headers, String originalFrame) {
+
+        String transaction = validateTransaction("COMMIT", headers, originalFrame);
+        if (transaction == null) {
+            return;
+        }
+
+        Map<String, List<String>> sends = transactions == null ? null : transactions.remove(transaction);
+        if (sends == null) {
+            sendError(
+                    "unknown transaction",
+                    originalFrame,
+                    "Transaction " + transaction + " was not begun.",
+                    headers);
+            return;
+        }
+
+        // a single fan-out pass per destination
+        for (Map.Entry<String, List<String>> entry : sends.entrySet()) {
+            String destination = entry.getKey();
+            List<String> bodies = entry.getValue();
+
+            broker.executeFor(destination, () -> {
+                if (shouldTerminate || failed) {
+                    return;
+                }
+
+                if (!connections.isSubscribed(connectionId, destination)) {
+                    reportError(
+                            "not subscribed",
+                            originalFrame,
+                            "Client is not subscribed to destination " + destination,
+                            headers);
+                    return;
+                }
+
+                broker.publishAll(destination, bodies);
+
+                trackFileUploads(destination, bodies);
+            });
+        }
+
+        // the receipt confirms the whole transaction
+        if (headers.containsKey("receipt")) {
+            broker.executeAfterAll(() -> {
+                if (!shouldTerminate && !failed) {
+                    handleReceipt(headers);
+                }
+            });
+        }
+    }
+
+    private void handleAbort(Map<String, String> headers, String originalFrame) {
+
+        String transaction = validateTransaction("ABORT", headers, originalFrame);
+        if (transaction == null) {
+            return;
+        }
+
+        if (transactions == null || transactions.remove(transaction) == null) {
+            sendError(
+                    "unknown transaction",
+                    originalFrame,
+                    "Transaction " + transaction + " was not begun.",
                     headers);
             return;
         }
@@ -340,16 +636,197 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
             return;
         }
 
-        handleReceipt(headers);
+        disconnecting = true;
 
-        database.logout(connectionId);
+        // the receipt confirms every frame sent before, so wait for the
+        // work this client queued on destination lanes; the SQL logout then
+        // runs as work of the connection, not on the lane that ran last
+        broker.executeAfterAll(() -> connections.execute(connectionId, () -> {
+            if (shouldTerminate) {
+                return; // a lane found an error first
+            }
+            handleReceipt(headers);
 
-        shouldTerminate = true;
-        connections.disconnect(connectionId);
+            database.logout(connectionId);
+            broker.sessionClosed(connectionId);
+
+            shouldTerminate = true;
+            connections.disconnect(connectionId);
+        }));
     }
 
     /* ================= HELPERS ================= */
 
+    private String connectedFrame() {
+        return "CONNECTED\n" +
+                "version:1.2\n" +
+                (compressed ? "encoding:" + StompCompression.ENCODING + "\n" : "") +
+                (sessionToken != null ? "session:" + sessionToken + "\n" : "") +
+                "\n" +
+                "\0";
+    }
+
+    /**
+     * Takes over the parked session of the token: its connection id, user and
+     * subscriptions. The messages it got while parked follow CONNECTED.
+     *
+     * @return false if there is no such session, or it cannot be resumed
+     */
+    private boolean resumeSession(StompSessions sessions, String token) {
+        StompSessions.Session session = sessions.take(token);
+        if (session == null) {
+            return false;
+        }
+
+        // the held messages were encoded for the session as it was
+        compressed = session.compressed;
+        sessionToken = sessions.newToken();
+        if (!connections.resume(session.connectionId, connectionId, connectedFrame())) {
+            sessions.end(session); // messages were dropped while parked
+            compressed = false;
+            sessionToken = null;
+            return false;
+        }
+
+        connectionId = session.connectionId;
+        username = session.username;
+        subscriptionDestinations = session.subscriptionDestinations;
+        restoredDestinations = session.restoredDestinations;
+        connected = true;
+        broker.sessionStarted(connectionId, this);
+        return true;
+    }
+
+    /**
+     * Ends the session from another thread, e.g. when the cluster finds the
+     * user logged in on another node: the client gets an ERROR, sent as work
+     * of this connection, which is then closed like on any other ERROR.
+     *
+     * @return false if no client is connected (e.g. the session is parked)
+     */
+    public boolean endSession(String shortMessage, String details) {
+        return connections.execute(connectionId, () -> {
+            if (!shouldTerminate) {
+                sendError(shortMessage, null, details, null);
+            }
+        });
+    }
+
+    /**
+     * The first SEND of a reported game file starts with a "file:" line.
+     * Called on the lane of the destination once the SENDs are published (on
+     * COMMIT for a transactional one), so aborted or rejected SENDs are not
+     * recorded. The SQL inserts run as work of the connection, off the lane.
+     */
+    private void trackFileUploads(String destination, List<String> bodies) {
+        List<String> filenames = null;
+        for (String body : bodies) {
+            if (body.startsWith("file:")) {
+                int end = body.indexOf('\n');
+                if (filenames == null) {
+                    filenames = new ArrayList<>(1);
+                }
+                filenames.add((end < 0 ? body.substring(5) : body.substring(5, end)).trim());
+            }
+        }
+        if (filenames == null) {
+            return;
+        }
+
+        List<String> uploads = filenames;
+        String uploader = username;
+        Runnable audit = () -> {
+            for (String filename : uploads) {
+                database.trackFileUpload(uploader, filename, destination);
+            }
+        };
+        if (!connections.execute(connectionId, audit)) {
+            CompletableFuture.runAsync(audit); // parked: no protocol serves the connection
+        }
+    }
+
+    /**
+     * Sends an ERROR for a failure found on a destination lane. The ERROR is
+     * sent as work of the connection, which then logs out and closes it.
+     */
+    private void reportError(String shortMessage,
+            String originalFrame,
+            String details,
+            Map<String, String> headers) {
+        failed = true;
+        connections.execute(connectionId, () -> {
+            if (!shouldTerminate) {
+                sendError(shortMessage, originalFrame, details, headers);
+            }
+        });
+    }
+
+    /**
+     * @return the transaction header of a BEGIN, COMMIT or ABORT frame, or
+     *         null if an error was sent
+     */
+    private String validateTransaction(String command, Map<String, String> headers, String originalFrame) {
+        if (!connected) {
+            sendError(
+                    "Not connected",
+                    originalFrame,
+                    "Command sent before CONNECT.",
+                    headers);
+            return null;
+        }
+
+        String transaction = headers.get("transaction");
+        if (transaction == null) {
+            sendError(
+                    "malformed frame received",
+                    originalFrame,
+                    command + " frame must contain a transaction header.",
+                    headers);
+        }
+        return transaction;
+    }
+
+    /**
+     * @param acceptEncoding the accept-encoding header of CONNECT: a comma
+     *                       separated list of encodings, or null
+     */
+    private static boolean acceptsCompression(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String encoding : acceptEncoding.split(",")) {
+            if (encoding.trim().equals(StompCompression.ENCODING)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Map<Integer, String> subscriptionDestinations() {
+        if (subscriptionDestinations == null) {
+            subscriptionDestinations = new HashMap<>(4); // a few subscriptions per client
+        }
+        return subscriptionDestinations;
+    }
+
+    /**
+     * Subscribes the session to what the user was subscribed to when the
+     * server was last stopped (see StompSnapshot).
+     */
+    private void restoreSubscriptions() {
+        for (Map.Entry<String, Integer> entry : broker.takeRestoredSubscriptions(username).entrySet()) {
+            String destination = entry.getKey();
+            int subId = entry.getValue();
+
+            if (restoredDestinations == null) {
+                restoredDestinations = ConcurrentHashMap.newKeySet();
+            }
+            restoredDestinations.add(destination);
+            subscriptionDestinations().putIfAbsent(subId, destination);
+            broker.executeFor(destination, () -> connections.subscribe(connectionId, destination, subId));
+        }
+    }
+
     private void handleReceipt(Map<String, String> headers) {
         String receiptId = headers.get("receipt");
         if (receiptId != null) {
@@ -365,6 +842,17 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
             String originalFrame,
             String details,
             Map<String, String> headers) {
+        sendError(shortMessage, originalFrame, details, headers, null);
+    }
+
+    /**
+     * @param extraHeader a "name:value" header added to the ERROR, or null
+     */
+    private void sendError(String shortMessage,
+            String originalFrame,
+            String details,
+            Map<String, String> headers,
+            String extraHeader) {
 
         StringBuilder error = new StringBuilder("ERROR\n");
 
@@ -373,6 +861,10 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
             error.append("receipt-id:").append(headers.get("receipt")).append("\n");
         }
 
+        if (extraHeader != null) {
+            error.append(extraHeader).append("\n");
+        }
+
         // Short description (header)
         error.append("message:").append(shortMessage).append("\n\n");
 
@@ -389,6 +881,7 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
         shouldTerminate = true;
         connections.disconnect(connectionId);
         database.logout(connectionId);
+        broker.sessionClosed(connectionId);
     }
 
 }
@@ -0,0 +1,343 @@
+package bgu.spl.net.impl.stomp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import bgu.spl.net.srv.TrafficCapture;
+
+/**
+ * Plays a capture of inbound frames (see TrafficCapture) back against a
+ * server, and reports throughput and latency.
+ *
+ * Every captured connection gets a connection of its own, and the frames are
+ * sent in the captured order, at the captured pace divided by the speed
+ * factor, or back to back at "max" speed. Everything runs on one thread, so
+ * the same capture is always sent in the same order.
+ *
+ * The latency is measured for the frames that get an answer: from sending a
+ * CONNECT to its CONNECTED (or ERROR), and from sending a frame with a
+ * receipt header to its RECEIPT. The frames of a connection the server
+ * closed (e.g. after an ERROR) are skipped and counted, until the capture
+ * closes it too.
+ *
+ * <pre>
+ * java bgu.spl.net.impl.stomp.StompReplay &lt;capture file&gt; &lt;host:port&gt; [original|&lt;factor&gt;|max] [drain seconds]
+ * </pre>
+ */
+public class StompReplay {
+
+    private final InetSocketAddress server;
+    private final double speed; // 0 for max
+    private final Selector selector;
+    private final Map<Integer, Client> clients = new HashMap<>();
+    private final List<Client> closing = new ArrayList<>(); // closed once their answers arrive
+    private final Set<Integer> ended = new HashSet<>(); // captured connections the server closed
+
+    private long framesSent = 0;
+    private long framesSkipped = 0;
+    private long bytesSent = 0;
+    private long messages = 0;
+    private long receipts = 0;
+    private long connected = 0;
+    private long errors = 0;
+    private long pending = 0; // answers still expected
+    private long[] latencies = new long[1024];
+    private int latencyCount = 0;
+
+    public StompReplay(InetSocketAddress server, double speed) throws IOException {
+        this.server = server;
+        this.speed = speed;
+        this.selector = Selector.open();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("usage: StompReplay <capture file> <host:port> [original|<factor>|max] [drain seconds]");
+            System.exit(1);
+        }
+        String[] hostPort = args[1].split(":");
+        String mode = args.length > 2 ? args[2] : "original";
+        double speed = mode.equals("max") ? 0 : mode.equals("original") ? 1 : Double.parseDouble(mode);
+        long drainSeconds = args.length > 3 ? Long.parseLong(args[3]) : 5;
+
+        List<TrafficCapture.Record> records = new ArrayList<>(TrafficCapture.read(Paths.get(args[0])));
+        // frames of different connections may be written slightly out of order;
+        // those of one connection are in order, which the stable sort keeps
+        records.sort(Comparator.comparingLong(record -> record.nanos));
+
+        StompReplay replay = new StompReplay(new InetSocketAddress(hostPort[0], Integer.parseInt(hostPort[1])), speed);
+        long start = System.nanoTime();
+        replay.replay(records);
+        long sentNanos = System.nanoTime() - start;
+        replay.drain(drainSeconds * 1_000_000_000L);
+        System.out.print(replay.report(mode, records.size(), sentNanos, System.nanoTime() - start));
+    }
+
+    public void replay(List<TrafficCapture.Record> records) throws IOException {
+        long start = System.nanoTime();
+        for (TrafficCapture.Record record : records) {
+            if (speed > 0) {
+                waitUntil(start + (long) (record.nanos / speed));
+            } else {
+                poll(0);
+            }
+
+            if (record.isClose()) {
+                ended.remove(record.connectionId); // the captured server may reuse the id
+                Client client = clients.remove(record.connectionId);
+                if (client != null && client.awaited.isEmpty()) {
+                    client.close();
+                } else if (client != null) {
+                    // faster than captured, the answers the client got before closing may not be here yet
+                    client.closing = true;
+                    closing.add(client);
+                }
+            } else {
+                send(record.connectionId, record.bytes);
+            }
+        }
+    }
+
+    /**
+     * Reads the answers until none is expected, or the time is up.
+     */
+    public void drain(long nanos) throws IOException {
+        long end = System.nanoTime() + nanos;
+        while (pending > 0 && System.nanoTime() < end) {
+            poll(Math.max(1, (end - System.nanoTime()) / 1_000_000));
+        }
+        for (Client client : new ArrayList<>(clients.values())) {
+            client.close();
+        }
+        for (Client client : closing) {
+            client.close();
+        }
+        clients.clear();
+        closing.clear();
+    }
+
+    private void waitUntil(long due) throws IOException {
+        long left;
+        while ((left = due - System.nanoTime()) > 0) {
+            if (left > 1_000_000) {
+                poll(left / 1_000_000);
+            } else {
+                poll(0); // less than the select resolution
+            }
+        }
+    }
+
+    private void send(int connectionId, byte[] frame) throws IOException {
+        if (ended.contains(connectionId)) {
+            framesSkipped++;
+            return;
+        }
+        Client client = clients.get(connectionId);
+        if (client == null) {
+            client = new Client(connectionId, SocketChannel.open(server));
+            client.chan.configureBlocking(false);
+            client.chan.register(selector, SelectionKey.OP_READ, client);
+            clients.put(connectionId, client);
+        }
+
+        String receipt = answerOf(frame);
+        if (receipt != null) {
+            client.awaited.put(receipt, System.nanoTime());
+            pending++;
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(frame);
+        try {
+            while (buf.hasRemaining()) {
+                if (client.chan.write(buf) == 0) {
+                    poll(0); // read while the server is busy, it may be writing to us
+                }
+            }
+        } catch (IOException ex) {
+            // closed by the server, maybe by an ERROR read while polling
+            client.close();
+            framesSkipped++;
+            return;
+        }
+        framesSent++;
+        bytesSent += frame.length;
+    }
+
+    /**
+     * @return the key of the answer a frame gets (its receipt, or "" for the
+     *         CONNECTED of a CONNECT), or null if it gets none
+     */
+    private static String answerOf(byte[] frame) {
+        String text = new String(frame, StandardCharsets.UTF_8);
+        int start = 0;
+        while (start < text.length() && (text.charAt(start) == '\n' || text.charAt(start) == '\r')) {
+            start++;
+        }
+        int headersEnd = text.indexOf("\n\n", start);
+        String head = text.substring(start, headersEnd < 0 ? text.length() : headersEnd);
+        if (head.startsWith("CONNECT\n") || head.startsWith("STOMP\n")) {
+            return "";
+        }
+        for (String line : head.split("\n")) {
+            if (line.startsWith("receipt:")) {
+                return line.substring("receipt:".length());
+            }
+        }
+        return null;
+    }
+
+    private void poll(long timeoutMillis) throws IOException {
+        int ready = timeoutMillis > 0 ? selector.select(timeoutMillis) : selector.selectNow();
+        if (ready == 0) {
+            return;
+        }
+        for (SelectionKey key : selector.selectedKeys()) {
+            if (key.isValid() && key.isReadable()) {
+                ((Client) key.attachment()).read();
+            }
+        }
+        selector.selectedKeys().clear();
+    }
+
+    private void answered(Client client, String key) {
+        Long sentAt = client.awaited.remove(key);
+        if (sentAt != null) {
+            pending--;
+            if (latencyCount == latencies.length) {
+                latencies = Arrays.copyOf(latencies, latencyCount * 2);
+            }
+            latencies[latencyCount++] = System.nanoTime() - sentAt;
+            if (client.closing && client.awaited.isEmpty()) {
+                client.close();
+            }
+        }
+    }
+
+    public String report(String mode, int records, long sentNanos, long totalNanos) {
+        double seconds = sentNanos / 1e9;
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("replayed %d records at %s speed in %.3f s (%.3f s with the drain)%n",
+                records, mode, seconds, totalNanos / 1e9));
+        report.append(String.format("sent      %10d frames %12d bytes %12.0f frames/s%n",
+                framesSent, bytesSent, framesSent / seconds));
+        report.append(String.format("received  %10d MESSAGE %7d RECEIPT %7d CONNECTED %7d ERROR %12.0f messages/s%n",
+                messages, receipts, connected, errors, messages / (totalNanos / 1e9)));
+
+        long[] sorted = Arrays.copyOf(latencies, latencyCount);
+        Arrays.sort(sorted);
+        if (sorted.length > 0) {
+            double sum = 0;
+            for (long latency : sorted) {
+                sum += latency;
+            }
+            report.append(String.format("latency   %10d answers  mean %.3f  p50 %.3f  p90 %.3f  p99 %.3f  max %.3f ms%n",
+                    sorted.length, sum / sorted.length / 1e6, percentile(sorted, 50), percentile(sorted, 90),
+                    percentile(sorted, 99), sorted[sorted.length - 1] / 1e6));
+        }
+        report.append(String.format("skipped   %10d frames of connections the server closed%n", framesSkipped));
+        report.append(String.format("unanswered %9d%n", pending));
+        return report.toString();
+    }
+
+    private static double percentile(long[] sorted, int percent) {
+        int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    // a replayed connection
+    private final class Client {
+        final int connectionId; // in the capture
+        final SocketChannel chan;
+        final Map<String, Long> awaited = new HashMap<>(); // <receipt, sent at>, "" for CONNECT
+        final ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+        byte[] frame = new byte[256];
+        int length = 0;
+        boolean closing = false;
+
+        Client(int connectionId, SocketChannel chan) {
+            this.connectionId = connectionId;
+            this.chan = chan;
+        }
+
+        void read() throws IOException {
+            int read;
+            try {
+                read = chan.read(buf);
+            } catch (IOException ex) {
+                read = -1;
+            }
+            if (read < 0) {
+                close();
+                return;
+            }
+            buf.flip();
+            while (buf.hasRemaining()) {
+                byte b = buf.get();
+                if (b != 0) {
+                    if (length == frame.length) {
+                        frame = Arrays.copyOf(frame, length * 2);
+                    }
+                    frame[length++] = b;
+                } else {
+                    received(new String(frame, 0, length, StandardCharsets.UTF_8));
+                    length = 0;
+                }
+            }
+            buf.clear();
+        }
+
+        private void received(String frame) {
+            int start = 0;
+            while (start < frame.length() && frame.charAt(start) == '\n') {
+                start++;
+            }
+            if (frame.startsWith("MESSAGE\n", start)) {
+                messages++;
+            } else if (frame.startsWith("RECEIPT\n", start)) {
+                receipts++;
+                int id = frame.indexOf("receipt-id:", start);
+                if (id >= 0) {
+                    int end = frame.indexOf('\n', id);
+                    answered(this, frame.substring(id + "receipt-id:".length(), end < 0 ? frame.length() : end));
+                }
+            } else if (frame.startsWith("CONNECTED\n", start)) {
+                connected++;
+                answered(this, "");
+            } else if (frame.startsWith("ERROR\n", start)) {
+                errors++;
+                answered(this, ""); // a refused CONNECT, otherwise nothing else is coming
+                close();
+            }
+        }
+
+        void close() {
+            if (!chan.isOpen()) {
+                return;
+            }
+            if (!closing && clients.remove(connectionId, this)) {
+                ended.add(connectionId); // closed before the capture closes it
+            }
+            pending -= awaited.size(); // closed on purpose or by the server, no answer is coming
+            awaited.clear();
+            try {
+                chan.close();
+            } catch (IOException ex) {
+                // already closed
+            }
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package bgu.spl.net.impl.stomp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * A message selector, given in the "selector" header of SUBSCRIBE: only the
+ * messages it accepts are sent to the subscription.
+ *
+ * Selectors are a subset of the SQL-like JMS selectors, over the fields of a
+ * message (see {@link #fieldsOf(String, String)}):
+ * <pre>
+ * event_name LIKE '%goal%' OR (team_a = 'Germany' AND time BETWEEN 2700 AND 5400)
+ * </pre>
+ * with =, &lt;&gt;, &lt;, &lt;=, &gt;, &gt;=, LIKE (with % and _), IN ('a', 'b'),
+ * BETWEEN, AND, OR, NOT and parentheses. Values compare as numbers when both
+ * are numbers, and as strings otherwise. A comparison with a missing field is
+ * false.
+ *
+ * Selectors are compiled once, when subscribing, and the same selector text
+ * gives the same instance, so a message is matched once per distinct selector.
+ */
+public final class StompSelector {
+
+    private static final int MAX_INTERNED = 1024;
+    private static final ConcurrentHashMap<String, StompSelector> interned = new ConcurrentHashMap<>();
+
+    private final String text;
+    private final Predicate<Map<String, String>> predicate;
+
+    private StompSelector(String text, Predicate<Map<String, String>> predicate) {
+        this.text = text;
+        this.predicate = predicate;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the selector is malformed
+     */
+    public static StompSelector compile(String text) {
+        StompSelector selector = interned.get(text);
+        if (selector == null) {
+            selector = new StompSelector(text, new Parser(text).parse());
+            if (interned.size() < MAX_INTERNED) {
+                StompSelector existing = interned.putIfAbsent(text, selector);
+                if (existing != null) {
+                    selector = existing;
+                }
+            }
+        }
+        return selector;
+    }
+
+    public boolean accepts(Map<String, String> fields) {
+        return predicate.test(fields);
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    /**
+     * The fields of a message are its destination and the "key: value" lines
+     * at the start of a game report (user, team_a, team_b, event_name, time,
+     * then the updates), up to the description. Keys are lower case, with
+     * spaces turned into underscores; the first line with a key wins.
+     */
+    public static Map<String, String> fieldsOf(String destination, String body) {
+        Map<String, String> fields = new HashMap<>();
+        fields.put("destination", destination);
+
+        int start = 0;
+        while (start < body.length()) {
+            int end = body.indexOf('\n', start);
+            if (end < 0) {
+                end = body.length();
+            }
+            int colon = body.indexOf(':', start);
+            if (colon > start && colon < end) {
+                String key = body.substring(start, colon).trim().toLowerCase().replace(' ', '_');
+                if (key.equals("description")) {
+                    break;
+                }
+                fields.putIfAbsent(key, body.substring(colon + 1, end).trim());
+            }
+            start = end + 1;
+        }
+        return fields;
+    }
+
+    /* ================= Parsing ================= */
+
+    // recursive descent over: or := and (OR and)*, and := not (AND not)*,
+    // not := NOT not | '(' or ')' | comparison
+    private static final class Parser {
+        private final String text;
+        private final List<String> tokens = new ArrayList<>();
+        private int pos = 0;
+
+        Parser(String text) {
+            this.text = text;
+            tokenize();
+        }
+
+        Predicate<Map<String, String>> parse() {
+            if (tokens.isEmpty()) {
+                throw error("empty selector");
+            }
+            Predicate<Map<String, String>> predicate = parseOr();
+            if (pos < tokens.size()) {
+                throw error("unexpected " + tokens.get(pos));
+            }
+            return predicate;
+        }
+
+        private Predicate<Map<String, String>> parseOr() {
+            Predicate<Map<String, String>> left = parseAnd();
+            while (accept("OR")) {
+                left = left.or(parseAnd());
+            }
+            return left;
+        }
+
+        private Predicate<Map<String, String>> parseAnd() {
+            Predicate<Map<String, String>> left = parseNot();
+            while (accept("AND")) {
+                left = left.and(parseNot());
+            }
+            return left;
+        }
+
+        private Predicate<Map<String, String>> parseNot() {
+            if (accept("NOT")) {
+                return parseNot().negate();
+            }
+            if (accept("(")) {
+                Predicate<Map<String, String>> inner = parseOr();
+                expect(")");
+                return inner;
+            }
+            return parseComparison();
+        }
+
+        private Predicate<Map<String, String>> parseComparison() {
+            String field = next();
+            if (!isIdentifier(field)) {
+                throw error("field name expected instead of " + field);
+            }
+            boolean negated = accept("NOT");
+            String op = next().toUpperCase();
+
+            Predicate<Map<String, String>> comparison;
+            switch (op) {
+                case "LIKE": {
+                    Pattern pattern = likePattern(literal().text);
+                    comparison = fields -> {
+                        String value = fields.get(field);
+                        return value != null && pattern.matcher(value).matches();
+                    };
+                    break;
+                }
+                case "IN": {
+                    expect("(");
+                    List<Literal> values = new ArrayList<>();
+                    do {
+                        values.add(literal());
+                    } while (accept(","));
+                    expect(")");
+                    comparison = fields -> {
+                        String value = fields.get(field);
+                        if (value == null) {
+                            return false;
+                        }
+                        for (Literal candidate : values) {
+                            if (compare(value, candidate) == 0) {
+                                return true;
+                            }
+                        }
+                        return false;
+                    };
+                    break;
+                }
+                case "BETWEEN": {
+                    Literal low = literal();
+                    expect("AND");
+                    Literal high = literal();
+                    comparison = fields -> {
+                        String value = fields.get(field);
+                        return value != null && compare(value, low) >= 0 && compare(value, high) <= 0;
+                    };
+                    break;
+                }
+                default:
+                    if (negated) {
+                        throw error("NOT must be followed by LIKE, IN or BETWEEN");
+                    }
+                    if (!OPERATORS.contains(op)) {
+                        throw error("unknown operator " + op);
+                    }
+                    Literal operand = literal();
+                    comparison = fields -> {
+                        String value = fields.get(field);
+                        return value != null && holds(op, compare(value, operand));
+                    };
+                    return comparison;
+            }
+            return negated ? comparison.negate().and(fields -> fields.containsKey(field)) : comparison;
+        }
+
+        private static boolean holds(String op, int cmp) {
+            switch (op) {
+                case "=":
+                    return cmp == 0;
+                case "<>":
+                case "!=":
+                    return cmp != 0;
+                case "<":
+                    return cmp < 0;
+                case "<=":
+                    return cmp <= 0;
+                case ">":
+                    return cmp > 0;
+                case ">=":
+                    return cmp >= 0;
+                default:
+                    return false;
+            }
+        }
+
+        private Literal literal() {
+            String token = next();
+            if (token.startsWith("'")) {
+                return new Literal(token.substring(1, token.length() - 1).replace("''", "'"));
+            }
+            Literal literal = new Literal(token);
+            if (Double.isNaN(literal.number)) {
+                throw error("value expected instead of " + token);
+            }
+            return literal;
+        }
+
+        private boolean accept(String token) {
+            if (pos < tokens.size() && tokens.get(pos).equalsIgnoreCase(token)) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String token) {
+            if (!accept(token)) {
+                throw error(token + " expected");
+            }
+        }
+
+        private String next() {
+            if (pos == tokens.size()) {
+                throw error("unexpected end");
+            }
+            return tokens.get(pos++);
+        }
+
+        private void tokenize() {
+            int i = 0;
+            while (i < text.length()) {
+                char c = text.charAt(i);
+                int start = i;
+                if (Character.isWhitespace(c)) {
+                    i++;
+                    continue;
+                } else if (c == '\'') {
+                    // quotes inside strings are doubled
+                    i++;
+                    while (i < text.length() && (text.charAt(i) != '\'' || i + 1 < text.length() && text.charAt(i + 1) == '\'')) {
+                        i += text.charAt(i) == '\'' ? 2 : 1;
+                    }
+                    if (i == text.length()) {
+                        throw error("unterminated string");
+                    }
+                    i++;
+                } else if (c == '<' || c == '>' || c == '!') {
+                    i++;
+                    if (i < text.length() && (text.charAt(i) == '=' || c == '<' && text.charAt(i) == '>')) {
+                        i++;
+                    }
+                } else if (c == '=' || c == '(' || c == ')' || c == ',') {
+                    i++;
+                } else {
+                    while (i < text.length() && (Character.isLetterOrDigit(text.charAt(i))
+                            || text.charAt(i) == '_' || text.charAt(i) == '.' || text.charAt(i) == '-')) {
+                        i++;
+                    }
+                    if (i == start) {
+                        throw error("unexpected " + c);
+                    }
+                }
+                tokens.add(text.substring(start, i));
+            }
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " in selector: " + text);
+        }
+    }
+
+    private static final List<String> OPERATORS = Arrays.asList("=", "<>", "!=", "<", "<=", ">", ">=");
+
+    // a value of the selector, parsed once
+    private static final class Literal {
+        final String text;
+        final double number; // NaN if not a number
+
+        Literal(String text) {
+            this.text = text;
+            this.number = toNumber(text);
+        }
+    }
+
+    private static boolean isIdentifier(String token) {
+        return Character.isLetter(token.charAt(0)) || token.charAt(0) == '_';
+    }
+
+    private static double toNumber(String value) {
+        if (value.isEmpty()) {
+            return Double.NaN;
+        }
+        char first = value.charAt(0);
+        if (!Character.isDigit(first) && first != '-' && first != '+' && first != '.') {
+            return Double.NaN; // most values, without the cost of an exception
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException ex) {
+            return Double.NaN;
+        }
+    }
+
+    private static int compare(String value, Literal operand) {
+        if (!Double.isNaN(operand.number)) {
+            double number = toNumber(value);
+            if (!Double.isNaN(number)) {
+                return Double.compare(number, operand.number);
+            }
+        }
+        return value.compareTo(operand.text);
+    }
+
+    private static Pattern likePattern(String like) {
+        StringBuilder regex = new StringBuilder();
+        for (char c : like.toCharArray()) {
+            if (c == '%') {
+                regex.append(".*");
+            } else if (c == '_') {
+                regex.append('.');
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+}
@@ -1,6 +1,13 @@
 package bgu.spl.net.impl.stomp;
+import java.io.IOException;
+
 import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.MessagingProtocol;
+import bgu.spl.net.impl.cluster.ClusterNode;
+import bgu.spl.net.impl.data.Database;
+import bgu.spl.net.srv.ActorThreadPool;
+import bgu.spl.net.srv.ConnectionsImpl;
+import bgu.spl.net.srv.LaneExecutor;
 import bgu.spl.net.srv.Server;
 
 public class StompServer {
@@ -13,21 +20,72 @@ public class StompServer {
         int port = Integer.parseInt(args[0]);
         String serverType = args[1];
 
+        // reports are served from memory, starting with the history kept in SQL
+        if (!Database.getInstance().warmAudit()) {
+            System.out.println("Audit history not loaded, the SQL server is unavailable");
+        }
+
+        ConnectionsImpl<String> connections = new ConnectionsImpl<>();
+
+        // channel-affine mode: -Dstomp.lanes=<number of destination lanes>
+        int lanes = Integer.getInteger("stomp.lanes", 0);
+        StompBroker broker = new StompBroker(connections, lanes > 0 ? new LaneExecutor(lanes) : null);
+
+        // parallel fan-out: -Dstomp.fanOut.threshold (subscribers of a destination, 10000 by default)
+        // / -Dstomp.fanOut.partition (subscribers per task, 1024 by default)
+        int cores = Runtime.getRuntime().availableProcessors();
+        broker.setParallelFanOut(Integer.getInteger("stomp.fanOut.threshold", 10000),
+                Integer.getInteger("stomp.fanOut.partition", 1024), cores);
+
+        // session resumption, see StompSessions for the configuration
+        broker.setSessions(StompSessions.fromSystemProperties(connections, broker));
+
+        // hot destination detection, see StompHotspots for the configuration
+        StompHotspots hotspots = StompHotspots.fromSystemProperties();
+        if (hotspots != null) {
+            broker.setHotspots(hotspots);
+            hotspots.start(Long.getLong("stomp.hotspots.intervalSeconds", 5),
+                    Long.getLong("stomp.hotspots.reportSeconds", 60));
+        }
+
+        // warm restart, see StompSnapshot for the configuration
+        StompSnapshot snapshot = StompSnapshot.fromSystemProperties(connections, broker);
+        if (snapshot != null) {
+            snapshot.start(Long.getLong("stomp.snapshot.intervalSeconds", 30));
+        }
+
+        // cluster mode, see ClusterNode for the configuration
+        ClusterNode cluster = ClusterNode.fromSystemProperties(broker);
+        if (cluster != null) {
+            connections.setChannelListener(cluster);
+            Database.getInstance().setLoginArbiter(cluster);
+            try {
+                cluster.start();
+            } catch (IOException ex) {
+                System.out.println("cannot start cluster node " + cluster.getNodeId() + ": " + ex.getMessage());
+                System.exit(1);
+            }
+        }
+
         Server<String> server;
 
         if(serverType.equals("tpc")){
             server = Server.threadPerClient(
-                port, 
-                () ->  new StompMessagingProtocolImpl(), 
-                () ->  new StompEncoderDecoder()
+                port,
+                () ->  new StompMessagingProtocolImpl(broker),
+                () ->  new StompEncoderDecoder(),
+                connections
                 );
             server.serve();
         } else if(serverType.equals("reactor")){
-           final int NUM_THREADS = 100;
-           server =  Server.reactor(NUM_THREADS,
+           // elastic pool: -Dstomp.pool.min / -Dstomp.pool.max (cores / 16 x cores by default)
+           int minThreads = Integer.getInteger("stomp.pool.min", cores);
+           int maxThreads = Integer.getInteger("stomp.pool.max", Math.max(minThreads, 16 * cores));
+           server =  Server.reactor(new ActorThreadPool(minThreads, maxThreads),
              port,
-              () ->  new StompMessagingProtocolImpl(),
-               () -> new StompEncoderDecoder());
+              () ->  new StompMessagingProtocolImpl(broker),
+               () -> new StompEncoderDecoder(),
+               connections);
                server.serve();
         }
     }
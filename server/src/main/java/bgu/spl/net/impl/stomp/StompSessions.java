@@ -0,0 +1,180 @@
+package bgu.spl.net.impl.stomp;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import bgu.spl.net.impl.data.Database;
+import bgu.spl.net.srv.Connections;
+
+/**
+ * Lets a client that lost its connection resume its session on a new one,
+ * without logging in again and subscribing again.
+ *
+ * CONNECTED carries a "session" header with a token. When the connection
+ * closes without a DISCONNECT, the session is parked: the user stays logged
+ * in, the connection keeps its subscriptions, and the messages sent to it are
+ * held (see Connections#park). A CONNECT with the token in its "session"
+ * header, within the grace period, takes the session over and gets the held
+ * messages right after CONNECTED. Once the grace period is over the session
+ * ends like a DISCONNECT.
+ *
+ * Configured with -Dstomp.resume.graceSeconds (30 by default, 0 to end
+ * sessions when their connection closes) and -Dstomp.resume.maxMessages
+ * (messages held per session, 256 by default). A session that misses more,
+ * or misses messages sent between the close and the parking, cannot be
+ * resumed and ends right away.
+ */
+public class StompSessions {
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final Connections<String> connections;
+    private final Database database;
+    private final StompBroker broker;
+    private final long graceMillis;
+    private final int maxMessages;
+    // <token, session> of the parked sessions
+    private final ConcurrentHashMap<String, Session> parked = new ConcurrentHashMap<>();
+    // <username, token> of the parked sessions
+    private final ConcurrentHashMap<String, String> parkedUsers = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer;
+
+    public StompSessions(Connections<String> connections, Database database, StompBroker broker,
+            long graceMillis, int maxMessages) {
+        this.connections = connections;
+        this.database = database;
+        this.broker = broker;
+        this.graceMillis = graceMillis;
+        this.maxMessages = maxMessages;
+        this.timer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "stomp-sessions");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return the sessions configured by the stomp.resume system properties,
+     *         or null if resumption is disabled
+     */
+    public static StompSessions fromSystemProperties(Connections<String> connections, StompBroker broker) {
+        long graceSeconds = Long.getLong("stomp.resume.graceSeconds", 30);
+        if (graceSeconds <= 0) {
+            return null;
+        }
+        return new StompSessions(connections, Database.getInstance(), broker, graceSeconds * 1000,
+                Integer.getInteger("stomp.resume.maxMessages", 256));
+    }
+
+    /**
+     * @return a new unguessable token
+     */
+    public String newToken() {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    /**
+     * Parks the session of a connection closed without a DISCONNECT.
+     *
+     * @return false if the connection could not be parked, in which case the
+     *         caller ends the session
+     */
+    public boolean park(String token, int connectionId, String username,
+            Map<Integer, String> subscriptionDestinations, Set<String> restoredDestinations, boolean compressed) {
+        Session session = new Session(connectionId, username, subscriptionDestinations, restoredDestinations,
+                compressed);
+        // parked first, so an overflow right away finds the session
+        parked.put(token, session);
+        parkedUsers.put(username, token);
+        Runnable expire = () -> {
+            if (remove(token, session)) {
+                end(session);
+            }
+        };
+        // ended by the timer, not by the thread sending the message
+        if (!connections.park(connectionId, maxMessages, () -> timer.execute(expire))) {
+            remove(token, session);
+            return false;
+        }
+        timer.schedule(expire, graceMillis, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * @return the parked session of the token, which is no longer parked, or
+     *         null if there is none (never parked, expired or already taken)
+     */
+    public Session take(String token) {
+        Session session = parked.get(token);
+        return session != null && remove(token, session) ? session : null;
+    }
+
+    /**
+     * Ends the parked session of the user now, e.g. when the user logs in
+     * again instead of resuming.
+     *
+     * @return false if the user has no parked session
+     */
+    public boolean endParked(String username) {
+        String token = parkedUsers.get(username);
+        Session session = token == null ? null : parked.get(token);
+        if (session == null || !remove(token, session)) {
+            return false;
+        }
+        end(session);
+        return true;
+    }
+
+    /**
+     * Ends the parked session of the user, if any, on the thread of the
+     * sessions rather than the calling one.
+     */
+    public void endParkedLater(String username) {
+        timer.execute(() -> endParked(username));
+    }
+
+    /**
+     * Ends a session like a DISCONNECT would.
+     */
+    public void end(Session session) {
+        database.logout(session.connectionId);
+        broker.sessionClosed(session.connectionId);
+        connections.disconnect(session.connectionId);
+    }
+
+    private boolean remove(String token, Session session) {
+        if (!parked.remove(token, session)) {
+            return false;
+        }
+        parkedUsers.remove(session.username, token);
+        return true;
+    }
+
+    /**
+     * What a resumed connection takes over from the closed one.
+     */
+    public static final class Session {
+        final int connectionId;
+        final String username;
+        final Map<Integer, String> subscriptionDestinations; // may be null
+        final Set<String> restoredDestinations; // may be null
+        final boolean compressed;
+
+        Session(int connectionId, String username, Map<Integer, String> subscriptionDestinations,
+                Set<String> restoredDestinations, boolean compressed) {
+            this.connectionId = connectionId;
+            this.username = username;
+            this.subscriptionDestinations = subscriptionDestinations;
+            this.restoredDestinations = restoredDestinations;
+            this.compressed = compressed;
+        }
+    }
+}
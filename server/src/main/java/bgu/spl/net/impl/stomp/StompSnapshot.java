@@ -0,0 +1,219 @@
+package bgu.spl.net.impl.stomp;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import bgu.spl.net.impl.data.Database;
+import bgu.spl.net.impl.data.User;
+import bgu.spl.net.srv.Connections;
+
+/**
+ * Saves the server state that clients expect to find after a restart (the
+ * registered users, their subscriptions and the last message id) to a compact
+ * binary file, and loads it back on startup.
+ *
+ * The file is written on graceful shutdown and every few seconds, and is read
+ * through a memory mapping. Restored users log in with their password as
+ * usual, without registering again, and get their subscriptions back on
+ * their first login.
+ *
+ * Layout (big endian, strings are an int length followed by UTF-8 bytes):
+ * <pre>
+ * int magic, int version, long savedAtMillis, int lastMessageId, int userCount,
+ * userCount * { string name, string password, int subscriptionCount,
+ *               subscriptionCount * { string destination, int subscriptionId } }
+ * </pre>
+ *
+ * Enabled with -Dstomp.snapshot.file=&lt;path&gt;; the period is set with
+ * -Dstomp.snapshot.intervalSeconds (30 by default, 0 saves on shutdown only).
+ */
+public class StompSnapshot {
+
+    private static final int MAGIC = 0x53544d50; // "STMP"
+    private static final int VERSION = 1;
+
+    private final Path file;
+    private final Database database;
+    private final Connections<String> connections;
+    private final StompBroker broker;
+
+    public StompSnapshot(Path file, Database database, Connections<String> connections, StompBroker broker) {
+        this.file = file;
+        this.database = database;
+        this.connections = connections;
+        this.broker = broker;
+    }
+
+    /**
+     * @return the snapshot configured by the stomp.snapshot.file system
+     *         property, or null if none is configured
+     */
+    public static StompSnapshot fromSystemProperties(Connections<String> connections, StompBroker broker) {
+        String file = System.getProperty("stomp.snapshot.file");
+        if (file == null || file.isEmpty()) {
+            return null;
+        }
+        return new StompSnapshot(Paths.get(file), Database.getInstance(), connections, broker);
+    }
+
+    /**
+     * Loads the snapshot, if there is one, then saves it periodically and on
+     * shutdown.
+     */
+    public void start(long intervalSeconds) {
+        try {
+            load();
+        } catch (IOException | RuntimeException ex) {
+            System.out.println("Ignoring unreadable snapshot " + file + ": " + ex);
+        }
+
+        if (intervalSeconds > 0) {
+            ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "stomp-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+            timer.scheduleWithFixedDelay(this::saveQuietly, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(this::saveQuietly, "stomp-snapshot-shutdown"));
+    }
+
+    /* ================= Loading ================= */
+
+    /**
+     * Restores the users and subscriptions saved in the snapshot file.
+     *
+     * @return false if there is no snapshot file
+     */
+    public boolean load() throws IOException {
+        long start = System.nanoTime();
+
+        MappedByteBuffer buf;
+        try (FileChannel chan = FileChannel.open(file, StandardOpenOption.READ)) {
+            buf = chan.map(FileChannel.MapMode.READ_ONLY, 0, chan.size());
+        } catch (NoSuchFileException ex) {
+            return false;
+        }
+
+        if (buf.getInt() != MAGIC) {
+            throw new IOException("not a snapshot file");
+        }
+        int version = buf.getInt();
+        if (version != VERSION) {
+            throw new IOException("unsupported snapshot version " + version);
+        }
+        buf.getLong(); // saved at
+        broker.restoreLastMessageId(buf.getInt());
+
+        int users = buf.getInt();
+        int subscriptions = 0;
+        for (int i = 0; i < users; i++) {
+            String name = getString(buf);
+            String password = getString(buf);
+
+            int count = buf.getInt();
+            Map<String, Integer> userSubscriptions = new HashMap<>();
+            for (int j = 0; j < count; j++) {
+                String destination = getString(buf);
+                userSubscriptions.put(destination, buf.getInt());
+            }
+
+            if (database.restoreUser(name, password)) {
+                broker.restoreSubscriptions(name, userSubscriptions);
+                subscriptions += count;
+            }
+        }
+
+        System.out.println("Restored " + users + " users and " + subscriptions + " subscriptions from " + file
+                + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        return true;
+    }
+
+    private static String getString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /* ================= Saving ================= */
+
+    /**
+     * Writes the current state to the snapshot file. The file is replaced
+     * only once the new snapshot is complete.
+     */
+    public synchronized void save() throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt(broker.getLastMessageId());
+
+            // collected first, as users may register while the snapshot is written
+            Map<User, Map<String, Integer>> users = new HashMap<>();
+            for (User user : database.getUsers()) {
+                users.put(user, subscriptionsOf(user));
+            }
+
+            out.writeInt(users.size());
+            for (Map.Entry<User, Map<String, Integer>> entry : users.entrySet()) {
+                putString(out, entry.getKey().name);
+                putString(out, entry.getKey().password);
+                out.writeInt(entry.getValue().size());
+                for (Map.Entry<String, Integer> subscription : entry.getValue().entrySet()) {
+                    putString(out, subscription.getKey());
+                    out.writeInt(subscription.getValue());
+                }
+            }
+        }
+
+        try {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private void saveQuietly() {
+        try {
+            save();
+        } catch (IOException ex) {
+            System.out.println("Cannot save snapshot " + file + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * The subscriptions of a logged in user are the ones of its session; a
+     * logged out user keeps the ones restored for it and not taken yet.
+     */
+    private Map<String, Integer> subscriptionsOf(User user) {
+        if (user.isLoggedIn()) {
+            return connections.getSubscriptions(user.getConnectionId());
+        }
+        return broker.getRestoredSubscriptions(user.name);
+    }
+
+    private static void putString(DataOutputStream out, String str) throws IOException {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -6,44 +6,223 @@ import java.util.Queue;
 import java.util.Set;
 import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+/**
+ * Runs the tasks of every actor one at a time, in submission order, on a
+ * shared pool of worker threads.
+ *
+ * Tasks have a priority: when workers are scarce, an actor whose next task is
+ * a {@link #CONTROL} one (e.g. a client logging in) is served before actors
+ * with {@link #BULK} work queued, in submission order within a priority. The
+ * tasks of one actor still run in the order they were submitted. A control
+ * task is only ranked as if it had been queued a bounded time earlier, so
+ * bulk work waiting longer than that bound runs before the control tasks
+ * queued after it, and is never starved.
+ *
+ * Created with distinct minimum and maximum sizes, the pool sizes itself: a
+ * controller samples how long tasks wait in the queue and how many workers
+ * are blocked (see {@link #beginBlocking()}), grows the pool while tasks wait
+ * longer than the target, compensating for blocked workers, and shrinks it
+ * back one thread at a time towards the number of cores once the queue is
+ * quiet. Tuned with the system properties:
+ * <ul>
+ * <li>spl.net.pool.targetWaitMillis - queue wait above which the pool grows (2)</li>
+ * <li>spl.net.pool.controlMillis - sampling period of the controller (250)</li>
+ * <li>spl.net.pool.agingMillis - head start of control tasks over bulk ones (100)</li>
+ * </ul>
+ */
 public class ActorThreadPool {
 
-    private final Map<Object, Queue<Runnable>> acts;
+    private static final ThreadLocal<ActorThreadPool> WORKER_OF = new ThreadLocal<>();
+    private static final int CORES = Runtime.getRuntime().availableProcessors();
+    private static final Log.Site RESIZED = Log.site("actor pool", 0);
+
+    /** Priority of session control work, served first. */
+    public static final int CONTROL = 0;
+    /** Priority of everything else. */
+    public static final int BULK = 1;
+
+    private final Map<Object, Queue<Task>> acts;
     private final ReadWriteLock actsRWLock;
     private final Set<Object> playingNow;
-    private final ExecutorService threads;
+    private final ThreadPoolExecutor threads;
+
+    private final int minThreads;
+    private final int maxThreads;
+    private final long targetWaitNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("spl.net.pool.targetWaitMillis", 2));
+    private final long agingNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("spl.net.pool.agingMillis", 100));
+    private final ScheduledExecutorService controller; // null when neither resized nor watched
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder waitSamples = new LongAdder();
+    private final AtomicInteger blocked = new AtomicInteger(0);
+    private final AtomicInteger workerCounter = new AtomicInteger(0);
+    private final AtomicLong taskCounter = new AtomicLong(0);
+    private volatile double lastWaitMillis = 0;
+    private volatile String lastDecision = "none";
 
     public ActorThreadPool(int threads) {
-        this.threads = Executors.newFixedThreadPool(threads);
+        this(threads, threads);
+    }
+
+    public ActorThreadPool(int minThreads, int maxThreads) {
+        if (minThreads < 1 || maxThreads < minThreads) {
+            throw new IllegalArgumentException("bad pool bounds [" + minThreads + ", " + maxThreads + "]");
+        }
+        this.minThreads = minThreads;
+        this.maxThreads = maxThreads;
+
+        int initial = Math.max(minThreads, Math.min(CORES, maxThreads));
+        this.threads = new ThreadPoolExecutor(initial, initial, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(),
+                r -> new Thread(() -> {
+                    WORKER_OF.set(this);
+                    r.run();
+                }, "actor-" + workerCounter.getAndIncrement()));
         acts = new WeakHashMap<>();
         playingNow = ConcurrentHashMap.newKeySet();
         actsRWLock = new ReentrantReadWriteLock();
+
+        // a fixed size pool is never resized, its queue wait is only sampled
+        // for the admission control
+        if (minThreads < maxThreads || AdmissionControl.shared() != null) {
+            long period = Long.getLong("spl.net.pool.controlMillis", 250);
+            controller = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "actor-pool-controller");
+                thread.setDaemon(true);
+                return thread;
+            });
+            controller.scheduleAtFixedRate(this::resize, period, period, TimeUnit.MILLISECONDS);
+        } else {
+            controller = null;
+        }
+    }
+
+    /**
+     * Marks the calling worker as blocked (e.g. waiting for a remote server)
+     * until the matching {@link #endBlocking()}, so the pool can compensate for
+     * it. Does nothing when not called from a pool worker.
+     */
+    public static void beginBlocking() {
+        ActorThreadPool pool = WORKER_OF.get();
+        if (pool != null) {
+            pool.blocked.incrementAndGet();
+        }
+    }
+
+    public static void endBlocking() {
+        ActorThreadPool pool = WORKER_OF.get();
+        if (pool != null) {
+            pool.blocked.decrementAndGet();
+        }
     }
 
     public void submit(Object act, Runnable r) {
+        submit(act, r, BULK);
+    }
+
+    /**
+     * @param priority {@link #CONTROL} or {@link #BULK}
+     */
+    public void submit(Object act, Runnable r, int priority) {
+        Task task = new Task(act, r, priority, taskCounter.getAndIncrement());
         synchronized (act) {
             if (!playingNow.contains(act)) {
                 playingNow.add(act);
-                execute(r, act);
+                execute(task);
             } else {
-                pendingRunnablesOf(act).add(r);
+                pendingRunnablesOf(act).add(task);
             }
         }
     }
 
     public void shutdown() {
+        if (controller != null) {
+            controller.shutdownNow();
+        }
         threads.shutdownNow();
     }
 
-    private Queue<Runnable> pendingRunnablesOf(Object act) {
+    public int getPoolSize() {
+        return threads.getCorePoolSize();
+    }
+
+    public int getMinThreads() {
+        return minThreads;
+    }
+
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    public int getBlockedThreads() {
+        return blocked.get();
+    }
+
+    /**
+     * @return the average time tasks waited in the queue over the last sampling
+     *         period, 0 for a fixed size pool without admission control
+     */
+    public double getQueueWaitMillis() {
+        return lastWaitMillis;
+    }
+
+    /**
+     * @return a description of the controller's last resize
+     */
+    public String getLastDecision() {
+        return lastDecision;
+    }
+
+    /**
+     * Grows the pool by half while tasks wait longer than the target, and at
+     * once to a thread per core plus one per blocked worker. Shrinks it by one
+     * thread while the wait is well below the target, down to that same floor.
+     */
+    private void resize() {
+        long samples = waitSamples.sumThenReset();
+        long wait = waitNanos.sumThenReset();
+        long avgWait = samples == 0 ? 0 : wait / samples;
+        lastWaitMillis = avgWait / 1e6;
+
+        int size = threads.getCorePoolSize();
+        int blockedNow = blocked.get();
+        int floor = Math.max(minThreads, Math.min(maxThreads, CORES + blockedNow));
+
+        int newSize = size;
+        if (avgWait > targetWaitNanos && !threads.getQueue().isEmpty()) {
+            newSize = Math.min(maxThreads, Math.max(size + Math.max(1, size / 2), floor));
+        } else if (avgWait < targetWaitNanos / 4 && size > floor) {
+            newSize = size - 1;
+        }
+
+        if (newSize != size) {
+            if (newSize > size) {
+                threads.setMaximumPoolSize(newSize);
+                threads.setCorePoolSize(newSize);
+            } else {
+                threads.setCorePoolSize(newSize);
+                threads.setMaximumPoolSize(newSize);
+            }
+            lastDecision = String.format("%d -> %d threads (queue wait %.2f ms, %d blocked)",
+                    size, newSize, lastWaitMillis, blockedNow);
+            RESIZED.info(lastDecision);
+        }
+    }
+
+    private Queue<Task> pendingRunnablesOf(Object act) {
 
         actsRWLock.readLock().lock();
-        Queue<Runnable> pendingRunnables = acts.get(act);
+        Queue<Task> pendingRunnables = acts.get(act);
         actsRWLock.readLock().unlock();
 
         if (pendingRunnables == null) {
@@ -54,24 +233,58 @@ public class ActorThreadPool {
         return pendingRunnables;
     }
 
-    private void execute(Runnable r, Object act) {
-        threads.execute(() -> {
-            try {
-                r.run();
-            } finally {
-                complete(act);
-            }
-        });
+    // the actor is dispatched with the priority of its next task
+    private void execute(Task task) {
+        task.queuedAt = System.nanoTime();
+        task.rank = task.priority == CONTROL ? task.queuedAt - agingNanos : task.queuedAt;
+        threads.execute(task);
     }
 
     private void complete(Object act) {
         synchronized (act) {
-            Queue<Runnable> pending = pendingRunnablesOf(act);
+            Queue<Task> pending = pendingRunnablesOf(act);
             if (pending.isEmpty()) {
                 playingNow.remove(act);
             } else {
-                execute(pending.poll(), act);
+                execute(pending.poll());
+            }
+        }
+    }
+
+    private class Task implements Runnable, Comparable<Task> {
+
+        private final Object act;
+        private final Runnable r;
+        private final int priority;
+        private final long seq;
+        private long queuedAt;
+        private long rank; // queuedAt, minus the head start of control tasks
+
+        Task(Object act, Runnable r, int priority, long seq) {
+            this.act = act;
+            this.r = r;
+            this.priority = priority;
+            this.seq = seq;
+        }
+
+        @Override
+        public void run() {
+            waitNanos.add(System.nanoTime() - queuedAt);
+            waitSamples.increment();
+            try {
+                r.run();
+            } finally {
+                complete(act);
+            }
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            // the ranks are fixed once queued, as the queue requires
+            if (rank != other.rank) {
+                return Long.compare(rank - other.rank, 0); // nanoTime only compares by difference
             }
+            return Long.compare(seq, other.seq);
         }
     }
 
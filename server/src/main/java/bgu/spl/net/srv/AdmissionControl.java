@@ -0,0 +1,253 @@
+package bgu.spl.net.srv;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Protects the sessions already in place when the server is saturated, by
+ * turning new ones away rather than making everyone slower.
+ *
+ * A sampler compares three signals with their thresholds: how long tasks wait
+ * in the actor pools (see {@link #watch(ActorThreadPool)}), how many bytes
+ * are queued for the clients, and how long the SQL queries take. The load is
+ * the highest of the three ratios. At a load of 1 the server is REJECTING:
+ * protocols refuse new logins (see {@link #admit()}), with a hint of when to
+ * retry. At a load of 2 it is also PAUSED: the servers stop accepting
+ * sockets, which wait in the backlog. It goes back to REJECTING once the load
+ * is below 1, and to OPEN once it is below 1/2.
+ *
+ * Enabled with -Dspl.net.admission=true, and tuned with the system
+ * properties:
+ * <ul>
+ * <li>spl.net.admission.queueWaitMillis - pool queue wait threshold (50)</li>
+ * <li>spl.net.admission.outboundBytes - queued outbound bytes threshold (64 MB)</li>
+ * <li>spl.net.admission.sqlMillis - SQL latency threshold (500)</li>
+ * <li>spl.net.admission.retryAfterSeconds - retry hint at a load of 1, scaled with the load (5)</li>
+ * <li>spl.net.admission.sampleMillis - sampling period (250)</li>
+ * </ul>
+ * State changes are logged; the counters are available through the getters.
+ */
+public class AdmissionControl {
+
+    public enum State {
+        OPEN, REJECTING, PAUSED
+    }
+
+    private static final int MAX_RETRY_AFTER_SECONDS = 60;
+    private static final Log.Site STATE_CHANGED = Log.site("admission", 0);
+
+    private static final AdmissionControl SHARED = fromSystemProperties();
+
+    private final double queueWaitMillis;
+    private final long outboundBytes;
+    private final double sqlMillis;
+    private final int retryAfterSeconds;
+
+    private final List<ActorThreadPool> pools = new CopyOnWriteArrayList<>();
+    private final List<Runnable> acceptsResumed = new CopyOnWriteArrayList<>();
+    private final LongAdder queuedBytes = new LongAdder();
+    private final LongAdder sqlNanos = new LongAdder();
+    private final LongAdder sqlSamples = new LongAdder();
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder pauses = new LongAdder();
+    private final ScheduledExecutorService sampler;
+
+    private volatile State state = State.OPEN;
+    private volatile double load = 0;
+    private volatile double lastSqlMillis = 0;
+    private volatile String lastDecision = "none";
+
+    public AdmissionControl(double queueWaitMillis, long outboundBytes, double sqlMillis, int retryAfterSeconds,
+            long sampleMillis) {
+        this.queueWaitMillis = queueWaitMillis;
+        this.outboundBytes = outboundBytes;
+        this.sqlMillis = sqlMillis;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.sampler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "admission-control");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleAtFixedRate(this::sample, sampleMillis, sampleMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the admission control configured by the spl.net.admission
+     *         system properties, or null if it is disabled
+     */
+    public static AdmissionControl shared() {
+        return SHARED;
+    }
+
+    private static AdmissionControl fromSystemProperties() {
+        if (!Boolean.getBoolean("spl.net.admission")) {
+            return null;
+        }
+        return new AdmissionControl(
+                doubleProperty("spl.net.admission.queueWaitMillis", 50),
+                Long.getLong("spl.net.admission.outboundBytes", 64L << 20),
+                doubleProperty("spl.net.admission.sqlMillis", 500),
+                Integer.getInteger("spl.net.admission.retryAfterSeconds", 5),
+                Long.getLong("spl.net.admission.sampleMillis", 250));
+    }
+
+    private static double doubleProperty(String name, double defaultValue) {
+        String value = System.getProperty(name);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    /**
+     * Takes the queue wait of the pool into account.
+     */
+    public void watch(ActorThreadPool pool) {
+        pools.add(pool);
+    }
+
+    /**
+     * @return whether a new session may start now; if not, the caller turns
+     *         it away with {@link #retryAfterSeconds()}
+     */
+    public boolean admit() {
+        if (state == State.OPEN) {
+            admitted.increment();
+            return true;
+        }
+        rejected.increment();
+        return false;
+    }
+
+    /**
+     * @return the number of seconds after which a client turned away should
+     *         try again
+     */
+    public int retryAfterSeconds() {
+        return (int) Math.min(MAX_RETRY_AFTER_SECONDS, Math.ceil(retryAfterSeconds * Math.max(1, load)));
+    }
+
+    /**
+     * @return whether the servers should leave new sockets in the backlog
+     */
+    public boolean acceptsPaused() {
+        return state == State.PAUSED;
+    }
+
+    /**
+     * @param listener run by the sampler when accepts resume, e.g. to have a
+     *                 selector watch the server socket again
+     */
+    public void onAcceptsResumed(Runnable listener) {
+        acceptsResumed.add(listener);
+    }
+
+    /**
+     * Blocks while accepts are paused.
+     */
+    public synchronized void awaitAccepts() throws InterruptedException {
+        while (state == State.PAUSED) {
+            wait();
+        }
+    }
+
+    public void outboundQueued(int bytes) {
+        queuedBytes.add(bytes);
+    }
+
+    public void outboundWritten(int bytes) {
+        queuedBytes.add(-bytes);
+    }
+
+    public void sqlCompleted(long nanos) {
+        sqlNanos.add(nanos);
+        sqlSamples.increment();
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return the highest ratio of a signal to its threshold, as of the last
+     *         sample
+     */
+    public double getLoad() {
+        return load;
+    }
+
+    public long getOutboundBytes() {
+        return queuedBytes.sum();
+    }
+
+    public long getAdmitted() {
+        return admitted.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return how many times accepts were paused
+     */
+    public long getPauses() {
+        return pauses.sum();
+    }
+
+    /**
+     * @return a description of the last state change
+     */
+    public String getLastDecision() {
+        return lastDecision;
+    }
+
+    private void sample() {
+        double waitMillis = 0;
+        for (ActorThreadPool pool : pools) {
+            waitMillis = Math.max(waitMillis, pool.getQueueWaitMillis());
+        }
+        long samples = sqlSamples.sumThenReset();
+        long nanos = sqlNanos.sumThenReset();
+        // without queries (e.g. while logins are rejected) the last figure fades
+        lastSqlMillis = samples > 0 ? nanos / 1e6 / samples : lastSqlMillis / 2;
+        long bytes = queuedBytes.sum();
+
+        double newLoad = Math.max(waitMillis / queueWaitMillis,
+                Math.max((double) bytes / outboundBytes, lastSqlMillis / sqlMillis));
+        load = newLoad;
+
+        State newState = state;
+        if (newLoad >= 2) {
+            newState = State.PAUSED;
+        } else if (newLoad >= 1) {
+            newState = State.REJECTING;
+        } else if (state == State.PAUSED) {
+            newState = State.REJECTING;
+        } else if (newLoad < 0.5) {
+            newState = State.OPEN;
+        }
+
+        if (newState != state) {
+            State oldState = state;
+            lastDecision = String.format(
+                    "%s -> %s (queue wait %.2f ms, outbound %d bytes, sql %.2f ms; %d admitted, %d rejected)",
+                    oldState, newState, waitMillis, bytes, lastSqlMillis, admitted.sum(), rejected.sum());
+            STATE_CHANGED.info(lastDecision);
+            if (newState == State.PAUSED) {
+                pauses.increment();
+            }
+            synchronized (this) {
+                state = newState;
+                notifyAll();
+            }
+            if (oldState == State.PAUSED) {
+                for (Runnable listener : acceptsResumed) {
+                    listener.run();
+                }
+            }
+        }
+    }
+}
@@ -8,7 +8,6 @@ import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.function.Supplier;
-import java.util.concurrent.atomic.AtomicInteger;
 
 public abstract class BaseServer<T> implements Server<T> {
 
@@ -16,25 +15,32 @@ public abstract class BaseServer<T> implements Server<T> {
     private final Supplier<MessagingProtocol<T>> protocolFactory;
     private final Supplier<MessageEncoderDecoder<T>> encdecFactory;
     protected final ConnectionsImpl<T> connections;
-    private final AtomicInteger connectionIdCounter;
     private ServerSocket sock;
 
     public BaseServer(
             int port,
             Supplier<MessagingProtocol<T>> protocolFactory,
             Supplier<MessageEncoderDecoder<T>> encdecFactory) {
+        this(port, protocolFactory, encdecFactory, new ConnectionsImpl<>());
+    }
+
+    public BaseServer(
+            int port,
+            Supplier<MessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encdecFactory,
+            ConnectionsImpl<T> connections) {
 
         this.port = port;
         this.protocolFactory = protocolFactory;
         this.encdecFactory = encdecFactory;
         this.sock = null;
-        this.connections = new ConnectionsImpl<>();
-        this.connectionIdCounter = new AtomicInteger(0);
+        this.connections = connections;
     }
 
     @Override
     public void serve() {
 
+        AdmissionControl admission = AdmissionControl.shared(); // null if disabled
         try (ServerSocket serverSock = new ServerSocket(port)) {
             System.out.println("Server started");
 
@@ -42,17 +48,28 @@ public abstract class BaseServer<T> implements Server<T> {
 
             while (!Thread.currentThread().isInterrupted()) {
 
+                if (admission != null) {
+                    admission.awaitAccepts(); // new sockets wait in the backlog meanwhile
+                }
                 Socket clientSock = serverSock.accept();
-                int connectionId = connectionIdCounter.getAndIncrement();
+                int connectionId = connections.reserveId();
+                if (connectionId < 0) {
+                    clientSock.close(); // no connection id left
+                    continue;
+                }
                 MessagingProtocol<T> protocol = protocolFactory.get();
 
+                MessageEncoderDecoder<T> encdec = encdecFactory.get();
+                TrafficCapture capture = TrafficCapture.shared();
                 BlockingConnectionHandler<T> handler = new BlockingConnectionHandler<>(
                         clientSock,
-                        encdecFactory.get(),
-                        protocol);
+                        encdec,
+                        protocol,
+                        capture == null ? null : capture.recorder(connectionId, encdec));
 
                 boolean ok = connections.connect(connectionId, handler);
                 if (!ok) {
+                    connections.disconnect(connectionId);
                     clientSock.close(); 
                     continue;
                 }
@@ -62,6 +79,8 @@ public abstract class BaseServer<T> implements Server<T> {
                 execute(handler);
             }
         } catch (IOException ex) {
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
         }
 
         System.out.println("server closed!!!");
@@ -4,69 +4,260 @@ import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.MessagingProtocol;
 
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.Socket;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler<T> {
 
+    private static final int READ_BUFFER_SIZE = 1 << 13; // 8k
+    private static final int WRITE_BUFFER_SIZE = 1 << 16; // 64k
+    private static final byte[] END_OF_STREAM = new byte[0]; // tells the writer to close the socket
+    private static final Log.Site CONNECTION_FAILED = Log.site("connection failed");
+    private static final AdmissionControl ADMISSION = AdmissionControl.shared(); // null if disabled
+    private static final Log.Site SLOW_CONSUMER = Log.site("slow consumer closed");
+    // -Dspl.net.blocking.maxQueuedBytes: bytes queued for a client before it is closed (8 MB by default)
+    private static final long MAX_QUEUED_BYTES = Long.getLong("spl.net.blocking.maxQueuedBytes", 8L << 20);
+    private static final Log.Site TASK_FAILED = Log.site("connection task failed");
+    // runs the tasks given to execute(), the reader thread may be blocked in a read
+    private static final ExecutorService TASK_RUNNER = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "blocking-tasks");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     private final MessagingProtocol<T> protocol;
     private final MessageEncoderDecoder<T> encdec;
     private final Socket sock;
-    private BufferedInputStream in;
-    private BufferedOutputStream out;
+    private final BlockingQueue<byte[]> writeQueue = new LinkedBlockingQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
     private volatile boolean connected = true;
+    private volatile boolean unwritten = false; // the writer failed, or frames were left for it
+    private final TrafficCapture.Recorder<T> capture; // null unless capturing
+    // held while the protocol processes a message or runs a task
+    private final Object protocolLock = new Object();
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean tasksScheduled = new AtomicBoolean(false);
 
     public BlockingConnectionHandler(
-        Socket sock, 
-        MessageEncoderDecoder<T> reader, 
+        Socket sock,
+        MessageEncoderDecoder<T> reader,
         MessagingProtocol<T> protocol) {
+        this(sock, reader, protocol, null);
+    }
+
+    /**
+     * @param capture records the frames read, or null
+     */
+    public BlockingConnectionHandler(
+        Socket sock,
+        MessageEncoderDecoder<T> reader,
+        MessagingProtocol<T> protocol,
+        TrafficCapture.Recorder<T> capture) {
         this.sock = sock;
         this.encdec = reader;
         this.protocol = protocol;
+        this.capture = capture;
     }
 
     @Override
     public void run() {
-        try (Socket sock = this.sock) { // just for automatic closing
+        Thread writer = new Thread(this::writeLoop, Thread.currentThread().getName() + "-writer");
+        writer.start();
+
+        try {
+            InputStream in = sock.getInputStream();
+            byte[] buf = new byte[READ_BUFFER_SIZE];
             int read;
 
-            in = new BufferedInputStream(sock.getInputStream());
-            out = new BufferedOutputStream(sock.getOutputStream());
+            while (!protocol.shouldTerminate() && connected && (read = in.read(buf)) >= 0) {
+                for (int i = 0; i < read && !protocol.shouldTerminate(); i++) {
+                    T nextMessage = encdec.decodeNextByte(buf[i]);
+                    if (nextMessage != null) {
+                        if (capture != null) {
+                            capture.frame(nextMessage);
+                        }
+                        T response;
+                        synchronized (protocolLock) {
+                            response = protocol.process(nextMessage);
+                        }
+                        if (response != null) {
+                            send(response);
+                        }
+                    }
+                }
+            }
+
+        } catch (IOException ex) {
+            if (connected) { // otherwise the socket was closed on purpose
+                CONNECTION_FAILED.warn(ex);
+            }
+        } finally {
+            // the writer flushes whatever is still queued and closes the socket
+            connected = false;
+            writeQueue.add(END_OF_STREAM);
+            if (capture != null) {
+                capture.closed();
+            }
+            synchronized (protocolLock) {
+                protocol.onClose();
+            }
+        }
+
+    }
+
+    /**
+     * Runs the task on a thread of a shared pool, with the protocol to itself,
+     * after the tasks given before.
+     */
+    @Override
+    public boolean execute(Runnable task) {
+        tasks.add(task);
+        scheduleTasks();
+        return true;
+    }
 
-            while (!protocol.shouldTerminate() && connected && (read = in.read()) >= 0) {
-                T nextMessage = encdec.decodeNextByte((byte) read);
-                if (nextMessage != null) {
-                    protocol.process(nextMessage);
+    private void scheduleTasks() {
+        if (!tasks.isEmpty() && tasksScheduled.compareAndSet(false, true)) {
+            TASK_RUNNER.execute(this::runTasks);
+        }
+    }
+
+    private void runTasks() {
+        try {
+            synchronized (protocolLock) {
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException ex) {
+                        TASK_FAILED.error(ex);
+                    }
                 }
             }
+        } finally {
+            tasksScheduled.set(false);
+        }
+        scheduleTasks(); // tasks added after the queue looked empty but before the flag was cleared
+    }
+
+    /**
+     * Drains the write queue to the socket. Frames queued back to back are
+     * written into the same buffer and flushed together once the queue is
+     * empty, so a burst of frames costs a single syscall.
+     */
+    private void writeLoop() {
+        try (Socket sock = this.sock) { // just for automatic closing
+            BufferedOutputStream out = new BufferedOutputStream(sock.getOutputStream(), WRITE_BUFFER_SIZE);
+
+            byte[] next;
+            while ((next = writeQueue.take()) != END_OF_STREAM) {
+                out.write(next);
+                written(next);
+                if (writeQueue.isEmpty()) {
+                    out.flush();
+                }
+            }
+            out.flush();
 
         } catch (IOException ex) {
-            ex.printStackTrace();
+            connected = false;
+            unwritten = true; // the frame written and the buffered ones are lost
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            byte[] left;
+            while ((left = writeQueue.poll()) != null) { // never written
+                if (left != END_OF_STREAM) {
+                    unwritten = true;
+                }
+                written(left);
+            }
         }
+    }
 
+    private void written(byte[] frame) {
+        queuedBytes.addAndGet(-frame.length);
+        if (ADMISSION != null) {
+            ADMISSION.outboundWritten(frame.length);
+        }
     }
 
+    /**
+     * Stops accepting new frames; frames that were already sent (e.g. a RECEIPT
+     * or an ERROR preceding the close) are still written before the socket is
+     * closed.
+     */
     @Override
     public void close() throws IOException {
-        connected = false;
-        sock.close();
+        if (connected) {
+            connected = false;
+            writeQueue.add(END_OF_STREAM);
+        }
     }
 
     @Override
-    public synchronized void send(T msg) {
+    public boolean isOpen() {
+        return connected;
+    }
+
+    /**
+     * Frames the writer has not taken yet may still be written, but the
+     * connection is closing: they are counted as lost.
+     */
+    @Override
+    public boolean hasUnwritten() {
+        return unwritten || queuedBytes.get() > 0;
+    }
+
+    /**
+     * Queues the message for the writer. A client that does not read its
+     * frames is closed once more than spl.net.blocking.maxQueuedBytes are
+     * waiting for it, rather than holding the sender back or the frames
+     * piling up in memory.
+     */
+    @Override
+    public void send(T msg) {
         if (!connected) {
             return;
         }
-        try {
-            out.write(encdec.encode(msg));
-            out.flush();
-        } catch (IOException e) {
+        byte[] bytes = encdec.encode(msg);
+        long queued = queuedBytes.addAndGet(bytes.length);
+        if (queued > MAX_QUEUED_BYTES) {
+            queuedBytes.addAndGet(-bytes.length);
+            closeSlowConsumer(queued);
+            return;
+        }
+        if (ADMISSION != null) {
+            ADMISSION.outboundQueued(bytes.length);
+        }
+        writeQueue.add(bytes);
+        // the writer stops once disconnected, maybe after draining the queue
+        // but before the add: a frame it did not take is accounted for here
+        if (!connected && writeQueue.remove(bytes)) {
+            unwritten = true;
+            written(bytes);
+        }
+    }
+
+    // the frames queued are dropped: the reader and the writer fail on the closed socket
+    private void closeSlowConsumer(long queued) {
+        if (connected) {
+            connected = false;
+            SLOW_CONSUMER.warn(queued + " bytes queued");
             try {
-                close();
+                sock.close();
             } catch (IOException ex) {
-                ex.printStackTrace();
+                // closed anyway
             }
         }
     }
@@ -0,0 +1,293 @@
+package bgu.spl.net.srv;
+
+import java.io.PrintStream;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shared allocator for the direct buffers used by the reactor, both for socket
+ * reads and for encoded outbound frames.
+ *
+ * Buffers come in a fixed set of size classes. Released buffers go to a small
+ * per-thread cache first and then to a shared queue per class. The total amount
+ * of direct memory ever held by the pool is capped; once the cap is reached
+ * leases fall back to (unpooled) heap buffers, and released buffers beyond the
+ * shared retention limit are dropped so the footprint shrinks back after a burst.
+ *
+ * Configured through system properties:
+ * spl.net.buffers.maxDirectBytes, spl.net.buffers.maxPooledBytes,
+ * spl.net.buffers.threadCacheBytes and spl.net.buffers.leakDetection.
+ */
+public class BufferPool {
+
+    private static final int[] SIZE_CLASSES = { 1 << 9, 1 << 11, 1 << 13, 1 << 15, 1 << 16 }; // 512b .. 64k
+    private static final Log.Site DOUBLE_RELEASE = Log.site("buffer pool: double release");
+
+    private static final BufferPool SHARED = new BufferPool(
+            Long.getLong("spl.net.buffers.maxDirectBytes", 64L << 20),
+            Long.getLong("spl.net.buffers.maxPooledBytes", 16L << 20),
+            Integer.getInteger("spl.net.buffers.threadCacheBytes", 64 << 10),
+            Boolean.getBoolean("spl.net.buffers.leakDetection"));
+
+    private final long maxDirectBytes;
+    private final long maxPooledBytes;
+    private final int[] threadCacheCapacity;
+    private final boolean leakDetection;
+
+    private final AtomicLong directBytes = new AtomicLong(); // leased + pooled direct memory
+    private final AtomicLong sharedBytes = new AtomicLong(); // direct memory waiting in the shared queues
+    private final List<ConcurrentLinkedQueue<ByteBuffer>> shared = new ArrayList<>();
+    private final List<ThreadCache> threadCaches = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<ThreadCache> localCache;
+    private final Map<ByteBuffer, Lease> leases;
+
+    private final LongAdder leased = new LongAdder();
+    private final LongAdder heapFallbacks = new LongAdder();
+
+    public BufferPool(long maxDirectBytes, long maxPooledBytes, int threadCacheBytes, boolean leakDetection) {
+        this.maxDirectBytes = maxDirectBytes;
+        this.maxPooledBytes = maxPooledBytes;
+        this.leakDetection = leakDetection;
+        this.threadCacheCapacity = new int[SIZE_CLASSES.length];
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            threadCacheCapacity[i] = Math.max(1, threadCacheBytes / SIZE_CLASSES[i]);
+            shared.add(new ConcurrentLinkedQueue<>());
+        }
+        this.localCache = ThreadLocal.withInitial(() -> {
+            ThreadCache cache = new ThreadCache(Thread.currentThread(), threadCacheCapacity);
+            threadCaches.add(cache);
+            return cache;
+        });
+        this.leases = leakDetection ? Collections.synchronizedMap(new IdentityHashMap<>()) : null;
+
+        if (leakDetection) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> reportLeaks(System.err)));
+        }
+    }
+
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * @param size the minimal capacity needed
+     * @return a cleared buffer of at least the given capacity; must be given
+     *         back with {@link #release(ByteBuffer)}
+     */
+    public ByteBuffer lease(int size) {
+        int sizeClass = sizeClassOf(size);
+        ByteBuffer buff;
+
+        if (sizeClass < 0) {
+            // larger than any size class - never pooled
+            buff = ByteBuffer.allocate(size);
+        } else {
+            buff = localCache.get().poll(sizeClass);
+            if (buff == null) {
+                buff = shared.get(sizeClass).poll();
+                if (buff != null) {
+                    sharedBytes.addAndGet(-buff.capacity());
+                }
+            }
+            if (buff == null) {
+                buff = allocate(sizeClass);
+            }
+            buff.clear();
+        }
+
+        leased.increment();
+        if (leakDetection) {
+            leases.put(buff, new Lease());
+        }
+        return buff;
+    }
+
+    /**
+     * Returns a buffer obtained by {@link #lease(int)} to the pool. The caller
+     * must not touch the buffer afterwards.
+     */
+    public void release(ByteBuffer buff) {
+        if (buff == null) {
+            return;
+        }
+        if (leakDetection && leases.remove(buff) == null) {
+            DOUBLE_RELEASE.error(new IllegalStateException("released a buffer that is not leased"));
+            return;
+        }
+        leased.decrement();
+
+        if (!buff.isDirect()) {
+            return; // heap fallbacks are left to the garbage collector
+        }
+
+        int sizeClass = sizeClassOf(buff.capacity());
+        if (sizeClass < 0 || SIZE_CLASSES[sizeClass] != buff.capacity()) {
+            directBytes.addAndGet(-buff.capacity());
+            return;
+        }
+
+        if (localCache.get().offer(sizeClass, buff)) {
+            return;
+        }
+
+        if (sharedBytes.addAndGet(buff.capacity()) <= maxPooledBytes) {
+            shared.get(sizeClass).add(buff);
+        } else {
+            // over the retention limit, let the GC free the memory
+            sharedBytes.addAndGet(-buff.capacity());
+            directBytes.addAndGet(-buff.capacity());
+        }
+    }
+
+    /**
+     * Prints every buffer that is currently leased, together with the stack
+     * trace of the code that leased it. Only available in leak detection mode.
+     *
+     * @return the number of outstanding leases
+     */
+    public int reportLeaks(PrintStream out) {
+        if (!leakDetection) {
+            return 0;
+        }
+
+        List<Lease> outstanding;
+        synchronized (leases) {
+            outstanding = new ArrayList<>(leases.values());
+        }
+
+        long now = System.currentTimeMillis();
+        for (Lease lease : outstanding) {
+            out.println("LEAK: buffer leased " + (now - lease.leasedAt) + "ms ago by " + lease.thread
+                    + " was never released");
+            for (StackTraceElement frame : lease.stack) {
+                out.println("\tat " + frame);
+            }
+        }
+        return outstanding.size();
+    }
+
+    public long directBytes() {
+        return directBytes.get();
+    }
+
+    public long leasedBuffers() {
+        return leased.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool[direct=" + directBytes.get() +
+                "/" + maxDirectBytes +
+                ", pooled=" + sharedBytes.get() +
+                ", leased=" + leased.sum() +
+                ", heapFallbacks=" + heapFallbacks.sum() + "]";
+    }
+
+    private ByteBuffer allocate(int sizeClass) {
+        int size = SIZE_CLASSES[sizeClass];
+        if (reserve(size) || (reclaimDeadThreadCaches() && reserve(size))) {
+            return ByteBuffer.allocateDirect(size);
+        }
+
+        heapFallbacks.increment();
+        return ByteBuffer.allocate(size);
+    }
+
+    private boolean reserve(int size) {
+        long current;
+        do {
+            current = directBytes.get();
+            if (current + size > maxDirectBytes) {
+                return false;
+            }
+        } while (!directBytes.compareAndSet(current, current + size));
+        return true;
+    }
+
+    /**
+     * Buffers cached by threads that have since terminated are unreachable;
+     * give their memory back to the cap.
+     *
+     * @return true if anything was reclaimed
+     */
+    private boolean reclaimDeadThreadCaches() {
+        boolean reclaimed = false;
+        for (ThreadCache cache : threadCaches) {
+            Thread owner = cache.owner.get();
+            if (owner == null || !owner.isAlive()) {
+                threadCaches.remove(cache);
+                directBytes.addAndGet(-cache.drain());
+                reclaimed = true;
+            }
+        }
+        return reclaimed;
+    }
+
+    private static int sizeClassOf(int size) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (size <= SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static class ThreadCache {
+
+        private final WeakReference<Thread> owner;
+        private final ByteBuffer[][] slots;
+        private final int[] counts;
+
+        ThreadCache(Thread owner, int[] capacity) {
+            this.owner = new WeakReference<>(owner);
+            this.slots = new ByteBuffer[capacity.length][];
+            this.counts = new int[capacity.length];
+            for (int i = 0; i < capacity.length; i++) {
+                slots[i] = new ByteBuffer[capacity[i]];
+            }
+        }
+
+        ByteBuffer poll(int sizeClass) {
+            if (counts[sizeClass] == 0) {
+                return null;
+            }
+            ByteBuffer buff = slots[sizeClass][--counts[sizeClass]];
+            slots[sizeClass][counts[sizeClass]] = null;
+            return buff;
+        }
+
+        boolean offer(int sizeClass, ByteBuffer buff) {
+            if (counts[sizeClass] == slots[sizeClass].length) {
+                return false;
+            }
+            slots[sizeClass][counts[sizeClass]++] = buff;
+            return true;
+        }
+
+        long drain() {
+            long bytes = 0;
+            for (int i = 0; i < slots.length; i++) {
+                while (counts[i] > 0) {
+                    bytes += poll(i).capacity();
+                }
+            }
+            return bytes;
+        }
+    }
+
+    private static class Lease {
+
+        private final long leasedAt = System.currentTimeMillis();
+        private final String thread = Thread.currentThread().getName();
+        private final StackTraceElement[] stack = Thread.currentThread().getStackTrace();
+    }
+}
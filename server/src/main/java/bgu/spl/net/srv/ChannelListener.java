@@ -0,0 +1,15 @@
+package bgu.spl.net.srv;
+
+/**
+ * Notified by {@link ConnectionsImpl} when a channel gains its first subscriber
+ * or loses its last one. Calls for the same channel are never concurrent and
+ * arrive in order, so implementations must be quick and must not subscribe or
+ * unsubscribe themselves.
+ */
+public interface ChannelListener {
+
+    void channelActive(String channel);
+
+    void channelInactive(String channel);
+
+}
@@ -19,4 +19,39 @@ public interface ConnectionHandler<T> extends Closeable {
 
     void send(T msg);
 
+    /**
+     * Sends a message that supersedes the unsent messages with the same
+     * conflation key. Handlers without a send queue just send it.
+     */
+    default void send(T msg, String conflationKey) {
+        send(msg);
+    }
+
+    /**
+     * @return false once the messages sent to this handler are dropped, e.g.
+     *         after its socket was closed
+     */
+    default boolean isOpen() {
+        return true;
+    }
+
+    /**
+     * @return true if messages sent to this handler were not written to its
+     *         socket, e.g. frames still queued when the connection dropped
+     */
+    default boolean hasUnwritten() {
+        return false;
+    }
+
+    /**
+     * Runs the task as work of the connection: one at a time with the
+     * messages it reads, so the task may use its protocol, e.g. to act on
+     * the result of work done on another thread.
+     *
+     * @return false if no protocol serves the connection (e.g. it is parked)
+     */
+    default boolean execute(Runnable task) {
+        return false;
+    }
+
 }
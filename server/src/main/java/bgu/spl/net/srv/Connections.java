@@ -9,6 +9,14 @@ public interface Connections<T> {
     
     boolean send(int connectionId, T msg);
 
+    /**
+     * Same as {@link #send(int, Object)}, for a message that may replace the
+     * unsent messages with the same conflation key (see ConnectionHandler).
+     */
+    default boolean send(int connectionId, T msg, String conflationKey) {
+        return send(connectionId, msg);
+    }
+
     void send(String channel, T msg);
 
     boolean subscribe(int connectionId, String channel, int subscriptionId);
@@ -21,4 +29,43 @@ public interface Connections<T> {
 
     boolean isSubscribed(int connectionId, String channel);
 
+    Map<String, Integer> getSubscriptions(int connectionId);
+
+    /**
+     * Keeps a connection whose client went away, with its subscriptions: the
+     * messages sent to it are held, up to maxMessages, until
+     * {@link #resume(int, int, Object)} or {@link #disconnect(int)}.
+     *
+     * @param onOverflow run once, by the sending thread, when a message past
+     *                   maxMessages is dropped
+     * @return false if the connection is not connected, messages sent to it
+     *         were dropped or left unwritten since its client went away, or
+     *         parking is not supported
+     */
+    default boolean park(int connectionId, int maxMessages, Runnable onOverflow) {
+        return false;
+    }
+
+    /**
+     * Gives a parked connection the client of another connection: first and
+     * the held messages are sent to it, the parked connection id is now served
+     * by the handler of connectionId, and connectionId is released.
+     *
+     * @return false if the connection is not parked or messages were dropped
+     *         while it was
+     */
+    default boolean resume(int parkedId, int connectionId, T first) {
+        return false;
+    }
+
+    /**
+     * Runs the task as work of the connection, see
+     * {@link ConnectionHandler#execute(Runnable)}.
+     *
+     * @return false if the connection is not connected, or no protocol serves it
+     */
+    default boolean execute(int connectionId, Runnable task) {
+        return false;
+    }
+
 }
@@ -1,53 +1,187 @@
 package bgu.spl.net.srv;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public class ConnectionsImpl<T> implements Connections<T> {
 
-    // <connectionId, ConnectionHandler>
-    private final ConcurrentHashMap<Integer, ConnectionHandler<T>> handlers;
+    /*
+     * Connection ids are handed out by reserveId() as a slot index in the low
+     * SLOT_BITS and the generation of that slot above them. A slot is reused
+     * once its connection is gone, with the next generation, so ids of closed
+     * connections never match the new one. After MAX_GENERATION uses a slot is
+     * retired for good, so no id is ever given twice, and ids stay positive.
+     */
+    private static final int SLOT_BITS = 24;
+    private static final int SLOT_MASK = (1 << SLOT_BITS) - 1;
+    private static final int MAX_GENERATION = (1 << (31 - SLOT_BITS)) - 1;
+    private static final int INITIAL_SLOTS = 64;
+    private static final Log.Site CLOSE_FAILED = Log.site("close failed");
+
+    // <slot, Entry>, replaced by a larger copy when full; written under slotLock only
+    private volatile AtomicReferenceArray<Entry<T>> slots;
+    private final Object slotLock = new Object();
+    private int[] generations;       // next generation of each slot
+    private int[] freeSlots;         // stack of the slots that can be reused
+    private int freeCount = 0;
+    private int usedSlots = 0;       // slots ever handed out
 
     // <channel, <connectionId, subscriptionId>>
     private final ConcurrentHashMap<String, ConcurrentHashMap<Integer, Integer>> channelSubscriptions;
 
-    // <connectionId, <channel, subscriptionId>>
-    private final ConcurrentHashMap<Integer, ConcurrentHashMap<String, Integer>> clientSubscriptions;
+    // <connectionId, its subscriptions>
+    private final ConcurrentHashMap<Integer, Subscriptions> clientSubscriptions;
+
+    private volatile ChannelListener channelListener = null;
 
     public ConnectionsImpl() {
-        handlers = new ConcurrentHashMap<>();
+        slots = new AtomicReferenceArray<>(INITIAL_SLOTS);
+        generations = new int[INITIAL_SLOTS];
+        freeSlots = new int[INITIAL_SLOTS];
         channelSubscriptions = new ConcurrentHashMap<>();
         clientSubscriptions = new ConcurrentHashMap<>();
     }
 
+    /**
+     * Reserves the id of a new connection, to be passed to
+     * {@link #connect(int, ConnectionHandler)}. A reserved id that is not
+     * connected is released by {@link #disconnect(int)}.
+     *
+     * @return the id, or -1 if every id is used up
+     */
+    public int reserveId() {
+        synchronized (slotLock) {
+            int slot;
+            if (freeCount > 0) {
+                slot = freeSlots[--freeCount];
+            } else if (usedSlots <= SLOT_MASK) {
+                slot = usedSlots++;
+                if (slot == slots.length()) {
+                    grow();
+                }
+            } else {
+                return -1;
+            }
+            int connectionId = (generations[slot] << SLOT_BITS) | slot;
+            slots.set(slot, new Entry<>(connectionId, null));
+            return connectionId;
+        }
+    }
+
     @Override
     public boolean connect(int connectionId, ConnectionHandler<T> handler) {
-        if (handler == null) {
+        if (handler == null || connectionId < 0) {
             return false;
         }
 
-        ConnectionHandler<T> existing = handlers.putIfAbsent(connectionId, handler);
-
-        if (existing != null) {
-            return false; // already connected
+        synchronized (slotLock) {
+            int slot = connectionId & SLOT_MASK;
+            Entry<T> reserved = slot < slots.length() ? slots.get(slot) : null;
+            if (reserved == null || reserved.connectionId != connectionId || reserved.handler != null) {
+                return false; // not reserved, or already connected
+            }
+            slots.set(slot, new Entry<>(connectionId, handler));
         }
 
-        clientSubscriptions.put(connectionId, new ConcurrentHashMap<>());
+        clientSubscriptions.put(connectionId, Subscriptions.NONE);
         return true;
     }
 
     @Override
     public boolean send(int connectionId, T msg) {
-        ConnectionHandler<T> handler = handlers.get(connectionId);
-        if (handler == null) {
+        ConnectionHandler<T> handler = handlerOf(connectionId);
+        if (handler == null || !isOpen(connectionId, handler)) {
             return false;
         }
         handler.send(msg);
         return true;
     }
 
+    @Override
+    public boolean send(int connectionId, T msg, String conflationKey) {
+        ConnectionHandler<T> handler = handlerOf(connectionId);
+        if (handler == null || !isOpen(connectionId, handler)) {
+            return false;
+        }
+        handler.send(msg, conflationKey);
+        return true;
+    }
+
+    /**
+     * A connection whose socket closed stays in the table until its protocol
+     * is notified, and parks or disconnects it. The messages sent meanwhile
+     * are dropped, which is recorded so that it is not parked without them.
+     */
+    private boolean isOpen(int connectionId, ConnectionHandler<T> handler) {
+        if (handler.isOpen()) {
+            return true;
+        }
+        synchronized (slotLock) {
+            int slot = connectionId & SLOT_MASK;
+            Entry<T> entry = slots.get(slot);
+            if (entry != null && entry.connectionId == connectionId && entry.handler == handler && !entry.dropped) {
+                slots.set(slot, new Entry<>(connectionId, handler, true));
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean execute(int connectionId, Runnable task) {
+        ConnectionHandler<T> handler = handlerOf(connectionId);
+        return handler != null && handler.execute(task);
+    }
+
+    private ConnectionHandler<T> handlerOf(int connectionId) {
+        AtomicReferenceArray<Entry<T>> table = slots;
+        int slot = connectionId & SLOT_MASK;
+        if (connectionId < 0 || slot >= table.length()) {
+            return null;
+        }
+        Entry<T> entry = table.get(slot);
+        return entry != null && entry.connectionId == connectionId ? entry.handler : null;
+    }
+
+    /**
+     * Frees the slot of the connection, if it still holds it.
+     *
+     * @return the handler of the connection, or null if it was not connected
+     */
+    private ConnectionHandler<T> release(int connectionId) {
+        if (connectionId < 0) {
+            return null;
+        }
+        synchronized (slotLock) {
+            int slot = connectionId & SLOT_MASK;
+            Entry<T> entry = slot < slots.length() ? slots.get(slot) : null;
+            if (entry == null || entry.connectionId != connectionId) {
+                return null;
+            }
+            slots.set(slot, null);
+            if (++generations[slot] <= MAX_GENERATION) {
+                freeSlots[freeCount++] = slot;
+            } // else the slot is retired
+            return entry.handler;
+        }
+    }
+
+    // called under slotLock
+    private void grow() {
+        int length = slots.length();
+        int newLength = (int) Math.min((long) length * 2, SLOT_MASK + 1L);
+        AtomicReferenceArray<Entry<T>> table = new AtomicReferenceArray<>(newLength);
+        for (int i = 0; i < length; i++) {
+            table.set(i, slots.get(i));
+        }
+        generations = Arrays.copyOf(generations, newLength);
+        freeSlots = Arrays.copyOf(freeSlots, newLength);
+        slots = table;
+    }
+
     @Override
     public void send(String channel, T msg) {
         // Not used by the STOMP protocol implementation.
@@ -71,70 +205,51 @@ public class ConnectionsImpl<T> implements Connections<T> {
         }
 
         // update channelSubscriptions
-        ConcurrentHashMap<Integer, Integer> channelMap = channelSubscriptions.get(channel);
-        if (channelMap == null) {
-            channelMap = new ConcurrentHashMap<>();
-            channelSubscriptions.put(channel, channelMap);
-        }
-        channelMap.put(connectionId, subscriptionId);
+        addSubscriber(channel, connectionId, subscriptionId);
 
         // update clientSubscriptions
-        ConcurrentHashMap<String, Integer> clientMap = clientSubscriptions.get(connectionId);
-        if (clientMap == null) {
-            return false;
-        }
-        clientMap.put(channel, subscriptionId);
+        Subscriptions updated = clientSubscriptions.computeIfPresent(connectionId,
+                (id, subs) -> subs.with(channel, subscriptionId));
 
-        return true;
+        return updated != null;
     }
 
     @Override
     public boolean unsubscribe(int connectionId, int subscriptionId) {
 
-        // Get all subscriptions of this client: <channel , subscriptionId>
-        ConcurrentHashMap<String, Integer> subs = clientSubscriptions.get(connectionId);
-        if (subs == null)
-            return false;
-
-        String channelToRemove = null;
-
-        // Search for the channel that matches the given subscriptionId
-        for (String channel : subs.keySet()) {
-            if (subs.get(channel) == subscriptionId) {
-                channelToRemove = channel;
-                break;
+        // Remove the channel that matches the given subscriptionId from the
+        // client's subscription list
+        String[] removed = new String[1];
+        clientSubscriptions.computeIfPresent(connectionId, (id, subs) -> {
+            int index = subs.indexOfId(subscriptionId);
+            if (index < 0) {
+                return subs;
             }
-        }
+            removed[0] = subs.channels[index];
+            return subs.without(index);
+        });
 
+        String channelToRemove = removed[0];
         if (channelToRemove == null)
             return false;
 
-        // Remove from client's subscription list
-        subs.remove(channelToRemove);
-
-        ConcurrentHashMap<Integer, Integer> channelMap = channelSubscriptions.get(channelToRemove);
-        if (channelMap != null) {
-            // Remove this client from the channel subscribers
-            channelMap.remove(connectionId);
-        }
+        // Remove this client from the channel subscribers
+        removeSubscriber(channelToRemove, connectionId);
 
         return true;
     }
 
     @Override
     public void disconnect(int connectionId) {
-        ConnectionHandler<T> handler = handlers.remove(connectionId);
-        // Remove and get all subscriptions of this client: <channel , subscriptionId>
-        ConcurrentHashMap<String, Integer> subs = clientSubscriptions.remove(connectionId);
+        ConnectionHandler<T> handler = release(connectionId);
+        // Remove and get all subscriptions of this client
+        Subscriptions subs = clientSubscriptions.remove(connectionId);
 
         if (subs != null) {
             // Iterate over all channels this client was subscribed to
-            for (String channel : subs.keySet()) {
-                ConcurrentHashMap<Integer, Integer> channelMap = channelSubscriptions.get(channel);
-                if (channelMap != null) {
-                    // Remove this client from the channel subscribers
-                    channelMap.remove(connectionId);
-                }
+            for (String channel : subs.channels) {
+                // Remove this client from the channel subscribers
+                removeSubscriber(channel, connectionId);
             }
         }
 
@@ -144,11 +259,47 @@ public class ConnectionsImpl<T> implements Connections<T> {
                 handler.close();
             } catch (IOException ex) {
                 // Closing failed, but connection is already removed from server state
-                ex.printStackTrace();
+                CLOSE_FAILED.warn(ex);
             }
         }
     }
 
+    @Override
+    public boolean park(int connectionId, int maxMessages, Runnable onOverflow) {
+        synchronized (slotLock) {
+            int slot = connectionId & SLOT_MASK;
+            Entry<T> entry = connectionId >= 0 && slot < slots.length() ? slots.get(slot) : null;
+            // a session resumed without the frames its socket did not take would have a gap
+            if (entry == null || entry.connectionId != connectionId || entry.handler == null || entry.dropped
+                    || entry.handler.hasUnwritten()) {
+                return false;
+            }
+            slots.set(slot, new Entry<>(connectionId, new ParkedConnectionHandler<>(maxMessages, onOverflow)));
+        }
+        return true;
+    }
+
+    @Override
+    public boolean resume(int parkedId, int connectionId, T first) {
+        ConnectionHandler<T> parked = handlerOf(parkedId);
+        ConnectionHandler<T> handler = handlerOf(connectionId);
+        if (!(parked instanceof ParkedConnectionHandler) || handler == null) {
+            return false;
+        }
+
+        // the held messages go first; messages sent meanwhile to the parked
+        // handler are passed on, so the order holds until the slot is switched
+        if (!((ParkedConnectionHandler<T>) parked).resumeTo(handler, first)) {
+            return false;
+        }
+        synchronized (slotLock) {
+            slots.set(parkedId & SLOT_MASK, new Entry<>(parkedId, handler));
+        }
+        release(connectionId);
+        clientSubscriptions.remove(connectionId); // the new connection had only logged in
+        return true;
+    }
+
     @Override
     public Map<Integer, Integer> getSubscribers(String channel) {
         ConcurrentHashMap<Integer, Integer> subs = channelSubscriptions.get(channel);
@@ -159,9 +310,131 @@ public class ConnectionsImpl<T> implements Connections<T> {
         return new HashMap<>(subs); // snapshot
     }
 
+    @Override
+    public Map<String, Integer> getSubscriptions(int connectionId) {
+        Subscriptions subs = clientSubscriptions.get(connectionId);
+        Map<String, Integer> snapshot = new HashMap<>();
+        if (subs != null) {
+            for (int i = 0; i < subs.channels.length; i++) {
+                snapshot.put(subs.channels[i], subs.ids[i]);
+            }
+        }
+        return snapshot;
+    }
+
     public boolean isSubscribed(int connectionId, String channel) {
-        ConcurrentHashMap<String, Integer> subs = clientSubscriptions.get(connectionId);
-        return subs != null && subs.containsKey(channel);
+        Subscriptions subs = clientSubscriptions.get(connectionId);
+        return subs != null && subs.indexOf(channel) >= 0;
+    }
+
+    public void setChannelListener(ChannelListener listener) {
+        this.channelListener = listener;
+    }
+
+    // Channel maps are updated under compute() so that the first subscribe and
+    // the last unsubscribe of a channel are seen by exactly one caller.
+    private void addSubscriber(String channel, int connectionId, int subscriptionId) {
+        channelSubscriptions.compute(channel, (key, subscribers) -> {
+            if (subscribers == null) {
+                subscribers = new ConcurrentHashMap<>();
+            }
+            if (subscribers.isEmpty() && channelListener != null) {
+                channelListener.channelActive(channel);
+            }
+            subscribers.put(connectionId, subscriptionId);
+            return subscribers;
+        });
+    }
+
+    private void removeSubscriber(String channel, int connectionId) {
+        channelSubscriptions.computeIfPresent(channel, (key, subscribers) -> {
+            if (subscribers.remove(connectionId) != null && subscribers.isEmpty()) {
+                if (channelListener != null) {
+                    channelListener.channelInactive(channel);
+                }
+                return null; // drop the empty map
+            }
+            return subscribers;
+        });
     }
 
+    // a slot of the connection table, replaced as a whole so readers see both fields together
+    private static final class Entry<T> {
+        final int connectionId;
+        final ConnectionHandler<T> handler; // null while only reserved
+        final boolean dropped; // messages were sent to the handler after it closed
+
+        Entry(int connectionId, ConnectionHandler<T> handler) {
+            this(connectionId, handler, false);
+        }
+
+        Entry(int connectionId, ConnectionHandler<T> handler, boolean dropped) {
+            this.connectionId = connectionId;
+            this.handler = handler;
+            this.dropped = dropped;
+        }
+    }
+
+    /**
+     * The subscriptions of one client, as two parallel arrays: clients have a
+     * few subscriptions at most, which a map would store in several times the
+     * memory. Instances are immutable and replaced on every change.
+     */
+    private static final class Subscriptions {
+
+        static final Subscriptions NONE = new Subscriptions(new String[0], new int[0]);
+
+        final String[] channels;
+        final int[] ids;
+
+        private Subscriptions(String[] channels, int[] ids) {
+            this.channels = channels;
+            this.ids = ids;
+        }
+
+        int indexOf(String channel) {
+            for (int i = 0; i < channels.length; i++) {
+                if (channels[i].equals(channel)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        int indexOfId(int subscriptionId) {
+            for (int i = 0; i < ids.length; i++) {
+                if (ids[i] == subscriptionId) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        Subscriptions with(String channel, int subscriptionId) {
+            int index = indexOf(channel);
+            if (index >= 0) {
+                int[] newIds = ids.clone();
+                newIds[index] = subscriptionId;
+                return new Subscriptions(channels, newIds);
+            }
+            String[] newChannels = Arrays.copyOf(channels, channels.length + 1);
+            int[] newIds = Arrays.copyOf(ids, ids.length + 1);
+            newChannels[channels.length] = channel;
+            newIds[ids.length] = subscriptionId;
+            return new Subscriptions(newChannels, newIds);
+        }
+
+        Subscriptions without(int index) {
+            if (channels.length == 1) {
+                return NONE;
+            }
+            String[] newChannels = new String[channels.length - 1];
+            int[] newIds = new int[ids.length - 1];
+            System.arraycopy(channels, 0, newChannels, 0, index);
+            System.arraycopy(channels, index + 1, newChannels, index, channels.length - index - 1);
+            System.arraycopy(ids, 0, newIds, 0, index);
+            System.arraycopy(ids, index + 1, newIds, index, ids.length - index - 1);
+            return new Subscriptions(newChannels, newIds);
+        }
+    }
 }
@@ -0,0 +1,82 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks on a fixed set of single-threaded lanes. Tasks submitted with the
+ * same key always run on the same lane, in submission order, and never
+ * concurrently with each other, so state owned by a key needs no locking.
+ */
+public class LaneExecutor {
+
+    private static final Log.Site TASK_FAILED = Log.site("lane task failed");
+
+    private final ExecutorService[] lanes;
+
+    public LaneExecutor(int lanes) {
+        this(lanes, "lane");
+    }
+
+    /**
+     * @param name the prefix of the lane thread names
+     */
+    public LaneExecutor(int lanes, String name) {
+        this.lanes = new ExecutorService[lanes];
+        for (int i = 0; i < lanes; i++) {
+            String threadName = name + "-" + i;
+            this.lanes[i] = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, threadName);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    public void execute(Object key, Runnable task) {
+        lanes[laneOf(key)].execute(guarded(task));
+    }
+
+    /**
+     * Runs the task once every lane has finished the tasks submitted to it
+     * before this call.
+     */
+    public void executeAfterAll(Runnable task) {
+        AtomicInteger remaining = new AtomicInteger(lanes.length);
+        Runnable barrier = guarded(() -> {
+            if (remaining.decrementAndGet() == 0) {
+                task.run();
+            }
+        });
+        for (ExecutorService lane : lanes) {
+            lane.execute(barrier);
+        }
+    }
+
+    public int laneOf(Object key) {
+        int h = key.hashCode();
+        return Math.floorMod(h ^ (h >>> 16), lanes.length);
+    }
+
+    public int size() {
+        return lanes.length;
+    }
+
+    public void shutdown() {
+        for (ExecutorService lane : lanes) {
+            lane.shutdownNow();
+        }
+    }
+
+    // a failing task must not take the lane's thread down with it
+    private static Runnable guarded(Runnable task) {
+        return () -> {
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                TASK_FAILED.error(ex);
+            }
+        };
+    }
+}
@@ -0,0 +1,239 @@
+package bgu.spl.net.srv;
+
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logging for the paths that must not block on the console, e.g. the I/O
+ * failures of every connection during a network flap.
+ *
+ * Messages are logged through sites, one per place in the code:
+ * <pre>
+ * private static final Log.Site READ_FAILED = Log.site("read failed");
+ * ...
+ * READ_FAILED.warn(ex);
+ * </pre>
+ * A site logs at most once per dedup window; the occurrences in between are
+ * only counted, and the next message of the site tells how many there were.
+ * Sites of rare events (e.g. state changes) may log every occurrence.
+ * Logged messages go to a lock-free ring that a background thread drains to
+ * System.err, so a thread never waits for the console. A full ring drops the
+ * message (and counts it).
+ *
+ * Messages logged as errors carry their stack trace, the others only the
+ * exception, unless the level is DEBUG.
+ *
+ * Configured through system properties: spl.net.log.level (DEBUG, INFO, WARN,
+ * ERROR or OFF; INFO by default), spl.net.log.dedupMillis (10000 by default, 0
+ * logs every occurrence) and spl.net.log.ring (messages, 8192 by default).
+ */
+public final class Log {
+
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    private static final Log SHARED = new Log(System.err,
+            Level.valueOf(System.getProperty("spl.net.log.level", "INFO").toUpperCase()),
+            Long.getLong("spl.net.log.dedupMillis", 10_000) * 1_000_000,
+            Integer.getInteger("spl.net.log.ring", 8192));
+    private static final long CLOCK_TICK_NANOS = 50_000_000;
+
+    private final PrintStream out;
+    private final Level level;
+    private final long dedupNanos;
+    private final AtomicReferenceArray<Event> ring;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong(); // the next slot to claim
+    private volatile long head = 0; // the next slot to drain, written by the drain thread only
+    private final LongAdder dropped = new LongAdder();
+    // System.nanoTime() as of the last pass of the drain thread, good enough
+    // for the dedup windows and much cheaper to read
+    private volatile long clock = System.nanoTime();
+    private final Thread drainer;
+    private SimpleDateFormat dateFormat; // used under the lock of drain only
+
+    public Log(PrintStream out, Level level, long dedupNanos, int ringSize) {
+        this.out = out;
+        this.level = level;
+        this.dedupNanos = dedupNanos;
+        int capacity = Integer.highestOneBit(Math.max(2, ringSize - 1)) << 1; // a power of two
+        this.ring = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+
+        drainer = new Thread(this::drainLoop, "spl-log");
+        drainer.setDaemon(true);
+        drainer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::drain, "spl-log-shutdown"));
+    }
+
+    public static Log shared() {
+        return SHARED;
+    }
+
+    /**
+     * @return a site of the shared log
+     */
+    public static Site site(String message) {
+        return SHARED.newSite(message, SHARED.dedupNanos);
+    }
+
+    /**
+     * @param dedupMillis the dedup window of the site, 0 for a site that
+     *                    logs every occurrence (e.g. rare state changes)
+     * @return a site of the shared log
+     */
+    public static Site site(String message, long dedupMillis) {
+        return SHARED.newSite(message, dedupMillis * 1_000_000);
+    }
+
+    public Site newSite(String message, long dedupNanos) {
+        return new Site(this, message, dedupNanos);
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.compareTo(this.level) >= 0 && level != Level.OFF;
+    }
+
+    // multiple producers, one consumer: a producer claims a slot once the
+    // drain thread cleared it, and publishes the event into it
+    private void offer(Event event) {
+        long slot;
+        do {
+            slot = tail.get();
+            if (slot - head >= ring.length()) {
+                dropped.increment();
+                return;
+            }
+        } while (!tail.compareAndSet(slot, slot + 1));
+        ring.lazySet((int) slot & mask, event);
+        LockSupport.unpark(drainer);
+    }
+
+    private void drainLoop() {
+        while (true) {
+            clock = System.nanoTime();
+            drain();
+            LockSupport.parkNanos(CLOCK_TICK_NANOS);
+        }
+    }
+
+    private synchronized void drain() {
+        if (dateFormat == null) {
+            dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        }
+        long next = head;
+        Event event;
+        // an empty slot before the tail is claimed but not published yet
+        while ((event = ring.get((int) next & mask)) != null) {
+            ring.lazySet((int) next & mask, null);
+            head = ++next;
+            write(event);
+        }
+        long lost = dropped.sumThenReset();
+        if (lost > 0) {
+            out.println(dateFormat.format(new Date()) + " WARN  [spl-log] " + lost
+                    + " messages dropped, the log fell behind");
+        }
+        out.flush();
+    }
+
+    private void write(Event event) {
+        StringBuilder line = new StringBuilder(128)
+                .append(dateFormat.format(new Date(event.millis)))
+                .append(' ').append(String.format("%-5s", event.level))
+                .append(" [").append(event.thread).append("] ")
+                .append(event.site.message);
+        if (event.detail != null) {
+            line.append(": ").append(event.detail);
+        }
+        if (event.error != null) {
+            line.append(": ").append(event.error);
+        }
+        if (event.suppressed > 0) {
+            line.append(" (").append(event.suppressed).append(" more since the last one)");
+        }
+        out.println(line);
+        if (event.error != null && (event.level == Level.ERROR || level == Level.DEBUG)) {
+            event.error.printStackTrace(out);
+        }
+    }
+
+    /**
+     * A place in the code that logs, and its dedup window.
+     */
+    public static final class Site {
+        private final Log log;
+        private final String message;
+        private final long dedupNanos;
+        private final AtomicLong loggedAt;
+        private final LongAdder suppressed = new LongAdder();
+
+        Site(Log log, String message, long dedupNanos) {
+            this.log = log;
+            this.message = message;
+            this.dedupNanos = dedupNanos;
+            this.loggedAt = new AtomicLong(log.clock - dedupNanos - 1);
+        }
+
+        public void debug(Throwable error) {
+            log(Level.DEBUG, null, error);
+        }
+
+        public void info(String detail) {
+            log(Level.INFO, detail, null);
+        }
+
+        public void warn(Throwable error) {
+            log(Level.WARN, null, error);
+        }
+
+        public void warn(String detail) {
+            log(Level.WARN, detail, null);
+        }
+
+        public void error(Throwable error) {
+            log(Level.ERROR, null, error);
+        }
+
+        /**
+         * @param detail appended to the message of the site, may be null
+         * @param error  may be null
+         */
+        public void log(Level level, String detail, Throwable error) {
+            if (!log.isEnabled(level)) {
+                return;
+            }
+            long now = log.clock;
+            long last = loggedAt.get();
+            if (dedupNanos > 0 && (now - last <= dedupNanos || !loggedAt.compareAndSet(last, now))) {
+                suppressed.increment();
+                return;
+            }
+            log.offer(new Event(this, level, detail, error, suppressed.sumThenReset()));
+        }
+    }
+
+    private static final class Event {
+        final Site site;
+        final Level level;
+        final String detail;
+        final Throwable error;
+        final long suppressed;
+        final long millis = System.currentTimeMillis();
+        final String thread = Thread.currentThread().getName();
+
+        Event(Site site, Level level, String detail, Throwable error, long suppressed) {
+            this.site = site;
+            this.level = level;
+            this.detail = detail;
+            this.error = error;
+            this.suppressed = suppressed;
+        }
+    }
+}
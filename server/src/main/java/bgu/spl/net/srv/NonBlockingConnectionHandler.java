@@ -6,71 +6,210 @@ import bgu.spl.net.api.StompMessagingProtocol;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
 
     private static final int BUFFER_ALLOCATION_SIZE = 1 << 13; // 8k
-    private static final ConcurrentLinkedQueue<ByteBuffer> BUFFER_POOL = new ConcurrentLinkedQueue<>();
+    private static final int MIN_READ_SIZE = 1 << 9; // 512b
+    private static final int MAX_READ_SIZE = 1 << 16; // 64k
+    private static final int PROCESS_BATCH = 64; // messages processed per actor task
+    private static final BufferPool BUFFER_POOL = BufferPool.shared();
+    private static final AdmissionControl ADMISSION = AdmissionControl.shared(); // null if disabled
+    private static final Log.Site READ_FAILED = Log.site("read failed");
+    private static final Log.Site WRITE_FAILED = Log.site("write failed");
+    private static final Log.Site CLOSE_FAILED = Log.site("close failed");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<NonBlockingConnectionHandler> WRITERS =
+            AtomicIntegerFieldUpdater.newUpdater(NonBlockingConnectionHandler.class, "writers");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<NonBlockingConnectionHandler> INTEREST_DIRTY =
+            AtomicIntegerFieldUpdater.newUpdater(NonBlockingConnectionHandler.class, "interestDirty");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<NonBlockingConnectionHandler> CLOSE_NOTIFIED =
+            AtomicIntegerFieldUpdater.newUpdater(NonBlockingConnectionHandler.class, "closeNotified");
 
     private final MessagingProtocol<T> protocol;
     private final MessageEncoderDecoder<T> encdec;
-    private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+    private final Queue<Outbound> writeQueue = new ConcurrentLinkedQueue<>();
+    // <conflation key, its latest queued frame>, created on the first conflatable frame
+    private volatile ConcurrentHashMap<String, Outbound> conflated = null;
+    private final Queue<T> inbound = new ConcurrentLinkedQueue<>(); // decoded, not processed yet
+    private final AtomicBoolean readScheduled = new AtomicBoolean(false);
+    private int readSize = BUFFER_ALLOCATION_SIZE; // accessed by the selector thread only
+    private volatile boolean closing = false;
+    private volatile boolean unwritten = false; // frames were released without being written
+    private volatile int writers = 0;       // threads that asked to write the queue out, see writeOut()
+    private volatile int interestDirty = 0; // 1 while an interest update waits for the selector thread
+    private volatile int closeNotified = 0; // 1 once the protocol was told of the close
     private final SocketChannel chan;
-    private final Reactor reactor;
+    private final Reactor<T> reactor;
+    private final TrafficCapture.Recorder<T> capture; // null unless capturing
 
     public NonBlockingConnectionHandler(
             MessageEncoderDecoder<T> reader,
             MessagingProtocol<T> protocol,
             SocketChannel chan,
-            Reactor reactor) {
+            Reactor<T> reactor) {
+        this(reader, protocol, chan, reactor, null);
+    }
+
+    /**
+     * @param capture records the frames read, or null
+     */
+    public NonBlockingConnectionHandler(
+            MessageEncoderDecoder<T> reader,
+            MessagingProtocol<T> protocol,
+            SocketChannel chan,
+            Reactor<T> reactor,
+            TrafficCapture.Recorder<T> capture) {
         this.chan = chan;
         this.encdec = reader;
         this.protocol = protocol;
         this.reactor = reactor;
-
+        this.capture = capture;
     }
 
-    public Runnable continueRead() {
-        ByteBuffer buf = leaseBuffer();
+    /**
+     * Reads whatever the socket has to offer, up to the given number of bytes,
+     * and decodes it on the calling (selector) thread. The messages are queued
+     * on the connection and processed by a single actor task, submitted with
+     * the priority of the first message; if such a task is already pending
+     * the new messages are simply picked up by it.
+     */
+    public void continueRead(int budget) {
+        int total = 0;
+        boolean eof = false;
 
-        boolean success = false;
-        try {
-            success = chan.read(buf) != -1;
-        } catch (IOException ex) {
-            ex.printStackTrace();
-        }
+        while (total < budget) {
+            ByteBuffer buf = leaseBuffer(readSize);
 
-        if (success) {
+            int read;
+            try {
+                read = chan.read(buf);
+            } catch (ClosedChannelException ex) {
+                read = -1; // closed by a sending thread once its last frame was written
+            } catch (IOException ex) {
+                READ_FAILED.warn(ex);
+                read = -1;
+            }
+
+            if (read <= 0) {
+                releaseBuffer(buf);
+                eof = read < 0;
+                break;
+            }
+
+            boolean filled = read == buf.capacity();
             buf.flip();
-            return () -> {
-                try {
-                    while (buf.hasRemaining()) {
-                        T nextMessage = encdec.decodeNextByte(buf.get());
-                        if (nextMessage != null) {
-                            protocol.process(nextMessage);     
+            try {
+                while (buf.hasRemaining()) {
+                    T nextMessage = encdec.decodeNextByte(buf.get());
+                    if (nextMessage != null) {
+                        inbound.add(nextMessage);
+                        if (capture != null) {
+                            capture.frame(nextMessage);
                         }
                     }
-                } finally {
-                    releaseBuffer(buf);
                 }
-            };
-        } else {
-            releaseBuffer(buf);
-            close();
-            return null;
+            } finally {
+                releaseBuffer(buf);
+            }
+            total += read;
+
+            adaptReadSize(read, filled);
+            if (!filled) {
+                break; // socket drained
+            }
+        }
+
+        if (eof) {
+            closeNow();
         }
 
+        if (total > 0) {
+            scheduleProcessing();
+        }
     }
 
+    private void scheduleProcessing() {
+        while (!inbound.isEmpty() && readScheduled.compareAndSet(false, true)) {
+            // no task polls the queue while the flag is set, so the head stays
+            T first = inbound.peek();
+            if (first != null) {
+                boolean control = encdec.isControl(first);
+                reactor.submit(this, () -> processReads(control),
+                        control ? ActorThreadPool.CONTROL : ActorThreadPool.BULK);
+                return;
+            }
+            readScheduled.set(false);
+        }
+    }
+
+    /**
+     * Processes up to a batch of queued messages of the priority the task was
+     * submitted with. The rest are left to a new task, so that a flooding
+     * connection yields its worker to other (e.g. control) tasks every batch,
+     * and a control message behind bulk ones (or the other way around) is
+     * queued with its own priority.
+     */
+    private void processReads(boolean control) {
+        try {
+            T nextMessage;
+            for (int i = 0; i < PROCESS_BATCH && (nextMessage = inbound.peek()) != null
+                    && encdec.isControl(nextMessage) == control; i++) {
+                inbound.poll();
+                protocol.process(nextMessage);
+            }
+        } finally {
+            readScheduled.set(false);
+        }
+
+        // messages left or queued after the queue looked empty but before the flag was cleared
+        scheduleProcessing();
+    }
+
+    /**
+     * Grows the read size while reads fill the whole buffer and shrinks it
+     * back when they only use a small part of it.
+     */
+    private void adaptReadSize(int read, boolean filled) {
+        if (filled) {
+            readSize = Math.min(readSize << 1, MAX_READ_SIZE);
+        } else if (read < readSize >> 2) {
+            readSize = Math.max(readSize >> 1, MIN_READ_SIZE);
+        }
+    }
+
+    /**
+     * Closes the connection once the frames already queued (e.g. the RECEIPT or
+     * ERROR preceding a disconnect) are written; frames sent afterwards are dropped.
+     */
     public void close() {
+        closing = true;
+        writeOut(); // closes the channel once the queue is written
+    }
+
+    private void closeNow() {
         try {
             chan.close();
         } catch (IOException ex) {
-            ex.printStackTrace();
+            CLOSE_FAILED.warn(ex);
+        }
+        writeOut(); // releases the queued frames
+        if (CLOSE_NOTIFIED.compareAndSet(this, 0, 1)) {
+            if (capture != null) {
+                capture.closed();
+            }
+            // after the messages already read, like any other work of the connection
+            reactor.submit(this, protocol::onClose, ActorThreadPool.BULK);
         }
     }
 
@@ -78,54 +217,239 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
         return !chan.isOpen();
     }
 
+    @Override
+    public boolean isOpen() {
+        return !closing && !isClosed();
+    }
+
+    /**
+     * Frames still queued once the channel is closed are released unwritten
+     * too, maybe by another thread after this returns.
+     */
+    @Override
+    public boolean hasUnwritten() {
+        return unwritten || !writeQueue.isEmpty();
+    }
+
+    /**
+     * Queued to the actor of the connection, even once it is closed: the
+     * protocol is notified of the close by a task of the same actor.
+     */
+    @Override
+    public boolean execute(Runnable task) {
+        reactor.submit(this, task, ActorThreadPool.BULK);
+        return true;
+    }
+
+    /**
+     * Called by the selector thread when the socket takes more bytes.
+     */
     public void continueWrite() {
-        while (!writeQueue.isEmpty()) {
+        writeOut();
+        requestInterest(); // drops the write interest if the queue was written out
+    }
+
+    /**
+     * Writes as much of the queue as the socket takes without blocking, by
+     * the calling thread, unless another thread is writing it: that thread
+     * then writes the frames queued meanwhile too. Write interest is requested
+     * from the selector only if bytes remain once the socket is full.
+     */
+    private void writeOut() {
+        if (WRITERS.getAndIncrement(this) != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            if (!writeQueued()) {
+                requestInterest();
+            }
+            missed = WRITERS.addAndGet(this, -missed);
+        } while (missed != 0);
+    }
+
+    /**
+     * Called by the thread writing only (see {@link #writeOut()}).
+     *
+     * @return false if the socket is full and frames are left
+     */
+    private boolean writeQueued() {
+        if (isClosed()) {
+            releaseWriteQueue();
+            return true;
+        }
+
+        Outbound top;
+        while ((top = skipSuperseded()) != null) {
             try {
-                ByteBuffer top = writeQueue.peek();
-                chan.write(top);
-                if (top.hasRemaining()) {
-                    return;
+                chan.write(top.buffer);
+                if (top.buffer.hasRemaining()) {
+                    return false;
                 } else {
                     writeQueue.remove();
+                    dequeued(top);
                 }
             } catch (IOException ex) {
-                ex.printStackTrace();
-                close();
+                WRITE_FAILED.warn(ex);
+                closeNow();
+                return true;
             }
         }
 
-        if (writeQueue.isEmpty()) {
-            if (protocol.shouldTerminate())
-                close();
-            else
-                reactor.updateInterestedOps(chan, SelectionKey.OP_READ);
+        if (closing || protocol.shouldTerminate()) {
+            closeNow();
+        }
+        return true;
+    }
+
+    /**
+     * Has the selector thread register the interest this connection needs
+     * now; requests made before the previous one was applied are merged.
+     */
+    private void requestInterest() {
+        if (INTEREST_DIRTY.compareAndSet(this, 0, 1)) {
+            reactor.updateInterestedOps(this);
+        }
+    }
+
+    /**
+     * Called by the selector thread to apply the latest interest request:
+     * reading (unless closing) and writing while frames are queued.
+     */
+    /* package */ void applyInterest(SelectionKey key) {
+        interestDirty = 0; // requests from now on are applied later
+        if (key != null && key.isValid()) {
+            key.interestOps((closing ? 0 : SelectionKey.OP_READ)
+                    | (writeQueue.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+        }
+    }
+
+    /* package */ SocketChannel channel() {
+        return chan;
+    }
+
+    /**
+     * Drops the superseded frames at the head of the write queue and claims
+     * the first one to write, which can no longer be superseded. Called by the
+     * thread writing only.
+     *
+     * @return the frame to write next, or null if there is none
+     */
+    private Outbound skipSuperseded() {
+        Outbound top;
+        while ((top = writeQueue.peek()) != null && !top.claim()) {
+            writeQueue.remove();
+            dequeued(top); // its key already points to the frame superseding it
         }
+        return top;
     }
 
-    private static ByteBuffer leaseBuffer() {
-        ByteBuffer buff = BUFFER_POOL.poll();
-        if (buff == null) {
-            return ByteBuffer.allocateDirect(BUFFER_ALLOCATION_SIZE);
+    private void releaseWriteQueue() {
+        Outbound top;
+        while ((top = writeQueue.poll()) != null) {
+            unwritten = true;
+            dequeued(top);
         }
+    }
 
-        buff.clear();
-        return buff;
+    private static ByteBuffer leaseBuffer(int size) {
+        return BUFFER_POOL.lease(size);
     }
 
     private static void releaseBuffer(ByteBuffer buff) {
-        BUFFER_POOL.add(buff);
+        BUFFER_POOL.release(buff);
     }
 
     @Override
     public void send(T msg) {
-        if (isClosed()) {
+        send(msg, null);
+    }
+
+    /**
+     * Queues the message. A message with a conflation key replaces the queued
+     * message with the same key, unless it is already being written: of a
+     * series of updates of the same thing, a slow client gets the latest only.
+     * Frames are written in the order they were sent, whatever their keys.
+     */
+    @Override
+    public void send(T msg, String conflationKey) {
+        if (!isOpen()) {
             return;
         }
 
-        // Encode message and add it to the write queue
-        writeQueue.add(ByteBuffer.wrap(encdec.encode(msg)));
+        // Encode message into a pooled buffer and add it to the write queue
+        byte[] bytes = encdec.encode(msg);
+        ByteBuffer buff = BUFFER_POOL.lease(bytes.length);
+        buff.put(bytes);
+        buff.flip();
+        if (ADMISSION != null) {
+            ADMISSION.outboundQueued(bytes.length);
+        }
+        Outbound frame = new Outbound(buff, conflationKey);
+        if (conflationKey != null) {
+            Outbound previous = conflated().put(conflationKey, frame);
+            if (previous != null) {
+                previous.supersede(); // released by the thread writing
+            }
+        }
+        writeQueue.add(frame);
+
+        // most of the time the socket takes the frame right away, and the
+        // selector is not involved (if closed meanwhile, the frame is released)
+        writeOut();
+    }
+
+    // the frame left the write queue: its key no longer points to it
+    private void dequeued(Outbound frame) {
+        if (frame.conflationKey != null) {
+            conflated.remove(frame.conflationKey, frame);
+        }
+        if (ADMISSION != null) {
+            ADMISSION.outboundWritten(frame.buffer.limit());
+        }
+        releaseBuffer(frame.buffer);
+    }
+
+    private ConcurrentHashMap<String, Outbound> conflated() {
+        ConcurrentHashMap<String, Outbound> map = conflated;
+        if (map == null) {
+            synchronized (this) {
+                map = conflated;
+                if (map == null) {
+                    conflated = map = new ConcurrentHashMap<>(4);
+                }
+            }
+        }
+        return map;
+    }
+
+    // a queued frame, and whether it is still waiting, being written, or superseded
+    private static final class Outbound {
+        private static final AtomicIntegerFieldUpdater<Outbound> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(Outbound.class, "state");
+
+        private static final int QUEUED = 0;
+        private static final int CLAIMED = 1;
+        private static final int SUPERSEDED = 2;
+
+        final ByteBuffer buffer;
+        final String conflationKey; // null if the frame cannot be superseded
+        volatile int state = QUEUED;
+
+        Outbound(ByteBuffer buffer, String conflationKey) {
+            this.buffer = buffer;
+            this.conflationKey = conflationKey;
+        }
+
+        /**
+         * @return false if the frame was superseded
+         */
+        boolean claim() {
+            return conflationKey == null || state == CLAIMED || STATE.compareAndSet(this, QUEUED, CLAIMED);
+        }
 
-        // Register interest in write operations
-        reactor.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        void supersede() {
+            STATE.compareAndSet(this, QUEUED, SUPERSEDED);
+        }
     }
 }
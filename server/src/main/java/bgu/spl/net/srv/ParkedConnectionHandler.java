@@ -0,0 +1,86 @@
+package bgu.spl.net.srv;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Stands for a connection whose client went away and may come back: the
+ * messages sent to it are held, up to a maximum, and handed to the client's
+ * next connection by {@link #resumeTo}. Past the maximum the messages are
+ * dropped, the connection can no longer be resumed, and the overflow listener
+ * is told, so the session can end right away.
+ */
+class ParkedConnectionHandler<T> implements ConnectionHandler<T> {
+
+    private final int maxMessages;
+    private final Runnable onOverflow;
+    private Queue<T> held = new ArrayDeque<>();
+    private ConnectionHandler<T> target = null; // once resumed
+    private boolean overflowed = false;
+    private boolean closed = false;
+
+    ParkedConnectionHandler(int maxMessages, Runnable onOverflow) {
+        this.maxMessages = maxMessages;
+        this.onOverflow = onOverflow;
+    }
+
+    @Override
+    public void send(T msg) {
+        send(msg, null);
+    }
+
+    @Override
+    public void send(T msg, String conflationKey) {
+        synchronized (this) {
+            if (target != null) {
+                target.send(msg, conflationKey); // sent by a thread that looked the parked handler up before the resume
+                return;
+            } else if (closed || overflowed) {
+                return;
+            } else if (held.size() < maxMessages) {
+                held.add(msg);
+                return;
+            }
+            overflowed = true;
+            held.clear();
+        }
+        onOverflow.run(); // outside the lock, the listener may close this handler
+    }
+
+    @Override
+    public synchronized boolean execute(Runnable task) {
+        return target != null && target.execute(task);
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return target != null ? target.isOpen() : !closed && !overflowed;
+    }
+
+    /**
+     * Sends first, then the held messages, to the handler; the messages sent
+     * to this handler from now on are passed on to it.
+     *
+     * @return false if messages were dropped or the handler is closed
+     */
+    synchronized boolean resumeTo(ConnectionHandler<T> handler, T first) {
+        if (closed || overflowed) {
+            return false;
+        }
+        handler.send(first);
+        for (T msg : held) {
+            handler.send(msg);
+        }
+        held = null;
+        target = handler;
+        return true;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (target == null) {
+            held.clear();
+        }
+    }
+}
@@ -12,34 +12,61 @@ import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Supplier;
-import java.util.concurrent.atomic.AtomicInteger;
 
 public class Reactor<T> implements Server<T> {
 
+    private static final Log.Site SELECT_FAILED = Log.site("selector failed");
+
     private final int port;
     private final Supplier<MessagingProtocol<T>> protocolFactory;
     private final Supplier<MessageEncoderDecoder<T>> readerFactory;
     private final ConnectionsImpl<T> connections;
-    private final AtomicInteger connectionIdCounter;
     private final ActorThreadPool pool;
+    private final int readBudget;
+    private final AdmissionControl admission = AdmissionControl.shared(); // null if disabled
     private Selector selector;
 
     private Thread selectorThread;
     private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    // handlers with an interest request, each queued once until it is applied
+    private final ConcurrentLinkedQueue<NonBlockingConnectionHandler<T>> interestUpdates = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
 
     public Reactor(
             int numThreads,
             int port,
             Supplier<MessagingProtocol<T>> protocolFactory,
             Supplier<MessageEncoderDecoder<T>> readerFactory) {
+        this(numThreads, port, protocolFactory, readerFactory, new ConnectionsImpl<>());
+    }
+
+    public Reactor(
+            int numThreads,
+            int port,
+            Supplier<MessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> readerFactory,
+            ConnectionsImpl<T> connections) {
+        this(new ActorThreadPool(numThreads), port, protocolFactory, readerFactory, connections);
+    }
 
-        this.pool = new ActorThreadPool(numThreads);
+    public Reactor(
+            ActorThreadPool pool,
+            int port,
+            Supplier<MessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> readerFactory,
+            ConnectionsImpl<T> connections) {
+
+        this.pool = pool;
+        if (admission != null) {
+            admission.watch(pool);
+        }
+        this.readBudget = Integer.getInteger("spl.net.reactor.readBudget", 1 << 16);
         this.port = port;
         this.protocolFactory = protocolFactory;
         this.readerFactory = readerFactory;
-        this.connections = new ConnectionsImpl<>();
-        this.connectionIdCounter = new AtomicInteger(0);
+        this.connections = connections;
     }
 
     @Override
@@ -52,12 +79,20 @@ public class Reactor<T> implements Server<T> {
 
             serverSock.bind(new InetSocketAddress(port));
             serverSock.configureBlocking(false);
-            serverSock.register(selector, SelectionKey.OP_ACCEPT);
+            SelectionKey acceptKey = serverSock.register(selector, SelectionKey.OP_ACCEPT);
+            if (admission != null) {
+                admission.onAcceptsResumed(() -> runOnSelectorThread(() -> {
+                    if (acceptKey.isValid()) {
+                        acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+                    }
+                }));
+            }
             System.out.println("Server started");
 
             while (!Thread.currentThread().isInterrupted()) {
 
                 selector.select();
+                wakeupPending.set(false); // work queued from now on needs a new wakeup
                 runSelectionThreadTasks();
 
                 for (SelectionKey key : selector.selectedKeys()) {
@@ -65,7 +100,11 @@ public class Reactor<T> implements Server<T> {
                     if (!key.isValid()) {
                         continue;
                     } else if (key.isAcceptable()) {
-                        handleAccept(serverSock, selector);
+                        if (admission != null && admission.acceptsPaused()) {
+                            key.interestOps(0); // new sockets wait in the backlog until accepts resume
+                        } else {
+                            handleAccept(serverSock, selector);
+                        }
                     } else {
                         handleReadWrite(key);
                     }
@@ -79,23 +118,39 @@ public class Reactor<T> implements Server<T> {
             // do nothing - server was requested to be closed
         } catch (IOException ex) {
             // this is an error
-            ex.printStackTrace();
+            SELECT_FAILED.error(ex);
         }
 
         System.out.println("server closed!!!");
         pool.shutdown();
     }
 
-    /* package */ void updateInterestedOps(SocketChannel chan, int ops) {
-        final SelectionKey key = chan.keyFor(selector);
-        if (key == null)
-            return;
+    /**
+     * Has the selector thread apply the handler's interest request (see
+     * NonBlockingConnectionHandler#applyInterest), right away when called by
+     * it, or else on its next loop.
+     */
+    /* package */ void updateInterestedOps(NonBlockingConnectionHandler<T> handler) {
+        if (Thread.currentThread() == selectorThread) {
+            handler.applyInterest(handler.channel().keyFor(selector));
+        } else {
+            interestUpdates.add(handler);
+            wakeupSelector();
+        }
+    }
+
+    /* package */ void runOnSelectorThread(Runnable task) {
         if (Thread.currentThread() == selectorThread) {
-            key.interestOps(ops);
+            task.run();
         } else {
-            selectorTasks.add(() -> {
-                key.interestOps(ops);
-            });
+            selectorTasks.add(task);
+            wakeupSelector();
+        }
+    }
+
+    // at most one wakeup per select loop, however many threads have work for it
+    private void wakeupSelector() {
+        if (!wakeupPending.get() && wakeupPending.compareAndSet(false, true)) {
             selector.wakeup();
         }
     }
@@ -106,7 +161,11 @@ public class Reactor<T> implements Server<T> {
             return;
         clientChan.configureBlocking(false);
 
-        int connectionId = connectionIdCounter.getAndIncrement();
+        int connectionId = connections.reserveId();
+        if (connectionId < 0) {
+            clientChan.close(); // no connection id left
+            return;
+        }
 
         MessagingProtocol<T> protocol = protocolFactory.get();
 
@@ -120,30 +179,35 @@ public class Reactor<T> implements Server<T> {
         // updateInterestedOps(clientChan, SelectionKey.OP_READ);
         // });
 
+        MessageEncoderDecoder<T> encdec = readerFactory.get();
+        TrafficCapture capture = TrafficCapture.shared();
         NonBlockingConnectionHandler<T> handler = new NonBlockingConnectionHandler<>(
-                readerFactory.get(),
+                encdec,
                 protocol,
                 clientChan,
-                this);
+                this,
+                capture == null ? null : capture.recorder(connectionId, encdec));
 
         boolean ok = connections.connect(connectionId, handler);
         if (!ok) {
+            connections.disconnect(connectionId);
             clientChan.close();
             return;
         }
 
-        clientChan.register(selector, SelectionKey.OP_READ, handler);
+        // with write interest too if frames sent meanwhile are left
+        handler.applyInterest(clientChan.register(selector, SelectionKey.OP_READ, handler));
     }
 
     private void handleReadWrite(SelectionKey key) {
         @SuppressWarnings("unchecked")
         NonBlockingConnectionHandler<T> handler = (NonBlockingConnectionHandler<T>) key.attachment();
 
+        // Every ready connection gets at most readBudget bytes per select loop.
+        // Connections with more pending data stay readable and are served again
+        // on the next loop, after everybody else had their turn.
         if (key.isReadable()) {
-            Runnable task = handler.continueRead();
-            if (task != null) {
-                pool.submit(handler, task);
-            }
+            handler.continueRead(readBudget);
         }
 
         if (key.isValid() && key.isWritable()) {
@@ -151,10 +215,18 @@ public class Reactor<T> implements Server<T> {
         }
     }
 
+    /* package */ void submit(NonBlockingConnectionHandler<T> handler, Runnable task, int priority) {
+        pool.submit(handler, task, priority);
+    }
+
     private void runSelectionThreadTasks() {
         while (!selectorTasks.isEmpty()) {
             selectorTasks.remove().run();
         }
+        NonBlockingConnectionHandler<T> handler;
+        while ((handler = interestUpdates.poll()) != null) {
+            handler.applyInterest(handler.channel().keyFor(selector));
+        }
     }
 
     @Override
@@ -27,7 +27,21 @@ public interface Server<T> extends Closeable {
             Supplier<MessagingProtocol<T> > protocolFactory,
             Supplier<MessageEncoderDecoder<T> > encoderDecoderFactory) {
 
-        return new BaseServer<T>(port, protocolFactory, encoderDecoderFactory) {
+        return threadPerClient(port, protocolFactory, encoderDecoderFactory, new ConnectionsImpl<>());
+
+    }
+
+    /**
+     * Same as {@link #threadPerClient(int, Supplier, Supplier)}, sharing the given connections
+     * @param connections The connections the server registers its clients at
+     */
+    public static <T> Server<T>  threadPerClient(
+            int port,
+            Supplier<MessagingProtocol<T> > protocolFactory,
+            Supplier<MessageEncoderDecoder<T> > encoderDecoderFactory,
+            ConnectionsImpl<T> connections) {
+
+        return new BaseServer<T>(port, protocolFactory, encoderDecoderFactory, connections) {
             @Override
             protected void execute(BlockingConnectionHandler<T>  handler) {
                 new Thread(handler).start();
@@ -53,4 +67,31 @@ public interface Server<T> extends Closeable {
         return new Reactor<T>(nthreads, port, protocolFactory, encoderDecoderFactory);
     }
 
+    /**
+     * Same as {@link #reactor(int, int, Supplier, Supplier)}, sharing the given connections
+     * @param connections The connections the server registers its clients at
+     */
+    public static <T> Server<T> reactor(
+            int nthreads,
+            int port,
+            Supplier<MessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory,
+            ConnectionsImpl<T> connections) {
+        return new Reactor<T>(nthreads, port, protocolFactory, encoderDecoderFactory, connections);
+    }
+
+    /**
+     * Same as {@link #reactor(int, int, Supplier, Supplier, ConnectionsImpl)}, running the
+     * protocols on the given pool (e.g. an elastic one, see {@link ActorThreadPool})
+     * @param pool The pool the protocols run on
+     */
+    public static <T> Server<T> reactor(
+            ActorThreadPool pool,
+            int port,
+            Supplier<MessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory,
+            ConnectionsImpl<T> connections) {
+        return new Reactor<T>(pool, port, protocolFactory, encoderDecoderFactory, connections);
+    }
+
 }
@@ -0,0 +1,283 @@
+package bgu.spl.net.srv;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import bgu.spl.net.api.MessageEncoderDecoder;
+
+/**
+ * Records the frames the servers receive, with their connection id and the
+ * time they were decoded, to a capture file that a replay tool can play back
+ * against a server (see bgu.spl.net.impl.stomp.StompReplay).
+ *
+ * Reading threads only queue the decoded frames; a background thread encodes
+ * them back and writes them. When the queue is full, frames are dropped
+ * (and counted) rather than slowing the server down.
+ *
+ * Enabled with -Dspl.net.capture.file=&lt;path&gt;; the queue holds
+ * -Dspl.net.capture.queue frames (65536 by default).
+ *
+ * Layout (big endian, varints as in protocol buffers, times in nanoseconds):
+ * <pre>
+ * int magic, int version, long startedAtMillis,
+ * records until the end of the file:
+ *   varint connectionId, zigzag varlong time since the previous record,
+ *   varint length + 1 (0 if the connection closed), length bytes
+ * </pre>
+ */
+public class TrafficCapture {
+
+    private static final int MAGIC = 0x53504c43; // "SPLC"
+    private static final int VERSION = 1;
+    private static final Entry END = new Entry(0, 0, null, null); // tells the writer to close the file
+
+    private static final TrafficCapture SHARED = open(System.getProperty("spl.net.capture.file"),
+            Integer.getInteger("spl.net.capture.queue", 1 << 16));
+
+    private final BlockingQueue<Entry> queue;
+    private final DataOutputStream out;
+    private final long startNanos = System.nanoTime();
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+    private volatile boolean closed = false;
+
+    public TrafficCapture(OutputStream out, int queueSize) throws IOException {
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.out = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+        this.out.writeInt(MAGIC);
+        this.out.writeInt(VERSION);
+        this.out.writeLong(System.currentTimeMillis());
+
+        writer = new Thread(this::writeLoop, "traffic-capture");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @return the capture configured by the spl.net.capture system
+     *         properties, or null if capture is disabled
+     */
+    public static TrafficCapture shared() {
+        return SHARED;
+    }
+
+    private static TrafficCapture open(String file, int queueSize) {
+        if (file == null || file.isEmpty()) {
+            return null;
+        }
+        try {
+            TrafficCapture capture = new TrafficCapture(Files.newOutputStream(Paths.get(file)), queueSize);
+            Runtime.getRuntime().addShutdownHook(new Thread(capture::close, "traffic-capture-shutdown"));
+            System.out.println("Capturing inbound frames to " + file);
+            return capture;
+        } catch (IOException ex) {
+            System.out.println("cannot capture to " + file + ": " + ex);
+            return null;
+        }
+    }
+
+    /**
+     * @return the recorder of a connection's frames
+     */
+    public <T> Recorder<T> recorder(int connectionId, MessageEncoderDecoder<T> encdec) {
+        return new Recorder<>(this, connectionId, encdec);
+    }
+
+    /**
+     * @return the number of frames dropped because the writer fell behind
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    private void offer(Entry entry) {
+        if (closed || !queue.offer(entry)) {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * Writes the queued frames out and closes the file.
+     */
+    public void close() {
+        closed = true;
+        try {
+            if (queue.offer(END, 5, TimeUnit.SECONDS)) {
+                writer.join(TimeUnit.SECONDS.toMillis(5));
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        long previous = 0;
+        try {
+            Entry entry;
+            while ((entry = queue.take()) != END) {
+                previous = write(entry, previous);
+                if (queue.isEmpty()) {
+                    out.flush();
+                }
+            }
+            out.close();
+        } catch (IOException ex) {
+            closed = true;
+            System.out.println("traffic capture stopped: " + ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private long write(Entry entry, long previous) throws IOException {
+        byte[] bytes = entry.bytes();
+        writeVarLong(out, entry.connectionId & 0xffffffffL);
+        long delta = entry.nanos - previous; // may be negative, frames of different threads race to the queue
+        writeVarLong(out, (delta << 1) ^ (delta >> 63));
+        writeVarLong(out, bytes == null ? 0 : bytes.length + 1);
+        if (bytes != null) {
+            out.write(bytes);
+        }
+        return entry.nanos;
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /* ================= Reading ================= */
+
+    /**
+     * A captured frame, or the close of its connection.
+     */
+    public static final class Record {
+        public final int connectionId;
+        public final long nanos;  // since the capture started
+        public final byte[] bytes; // null if the connection closed
+
+        Record(int connectionId, long nanos, byte[] bytes) {
+            this.connectionId = connectionId;
+            this.nanos = nanos;
+            this.bytes = bytes;
+        }
+
+        public boolean isClose() {
+            return bytes == null;
+        }
+    }
+
+    /**
+     * @return the records of a capture file, in the order they were written
+     */
+    public static List<Record> read(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("not a capture file");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported capture version " + version);
+            }
+            in.readLong(); // started at
+
+            List<Record> records = new ArrayList<>();
+            long nanos = 0;
+            while (true) {
+                long connectionId;
+                try {
+                    connectionId = readVarLong(in);
+                } catch (EOFException ex) {
+                    return records;
+                }
+                long zigzag = readVarLong(in);
+                nanos += (zigzag >>> 1) ^ -(zigzag & 1);
+                int length = (int) readVarLong(in) - 1;
+                byte[] bytes = null;
+                if (length >= 0) {
+                    bytes = new byte[length];
+                    in.readFully(bytes);
+                }
+                records.add(new Record((int) connectionId, nanos, bytes));
+            }
+        }
+    }
+
+    private static long readVarLong(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    /* ================= Recording ================= */
+
+    /**
+     * Records the frames of one connection.
+     */
+    public static final class Recorder<T> {
+        private final TrafficCapture capture;
+        private final int connectionId;
+        private final MessageEncoderDecoder<T> encdec;
+
+        Recorder(TrafficCapture capture, int connectionId, MessageEncoderDecoder<T> encdec) {
+            this.capture = capture;
+            this.connectionId = connectionId;
+            this.encdec = encdec;
+        }
+
+        public void frame(T message) {
+            capture.offer(new Entry(connectionId, System.nanoTime() - capture.startNanos, message, encdec));
+        }
+
+        public void closed() {
+            capture.offer(new Entry(connectionId, System.nanoTime() - capture.startNanos, null, null));
+        }
+    }
+
+    // a decoded frame, encoded back by the writer
+    private static final class Entry {
+        final int connectionId;
+        final long nanos;
+        final Object message; // null if the connection closed
+        final MessageEncoderDecoder<?> encdec;
+
+        Entry(int connectionId, long nanos, Object message, MessageEncoderDecoder<?> encdec) {
+            this.connectionId = connectionId;
+            this.nanos = nanos;
+            this.message = message;
+            this.encdec = encdec;
+        }
+
+        @SuppressWarnings("unchecked")
+        byte[] bytes() {
+            return message == null ? null : ((MessageEncoderDecoder<Object>) encdec).encode(message);
+        }
+    }
+}